@@ -0,0 +1,142 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import jgdiplugin.BlockingExecutors;
+import jgdiplugin.ProcessExecutor;
+import jgdiplugin.util.LatencyHistogram;
+
+/**
+ * Compares the ways of running blocking submissions: a fixed pool of
+ * platform threads as Pipeline uses today, a platform thread per task and a
+ * virtual thread per task. Every task holds one of a bounded number of
+ * resource permits while it blocks, like qsub processes or JDBC connections.
+ *
+ * Usage: BlockingExecutionBenchmark [tasks [latencyMs [permits [poolSize
+ * [sleep|process]]]]]. The process workload runs "sleep" through the
+ * {@link ProcessExecutor} instead of sleeping in Java, its stream drainers
+ * are virtual threads in the virtual run. Not part of the plugin, it is
+ * compiled and run against it from the benchmark source directory.
+ */
+public class BlockingExecutionBenchmark {
+
+    public BlockingExecutionBenchmark(int tasks, long latencyMs, int permits, int poolSize, boolean processes) {
+        this.tasks = tasks;
+        this.latencyMs = latencyMs;
+        this.permits = permits;
+        this.poolSize = poolSize;
+        this.processes = processes;
+    }
+
+    /**
+     * Runs all tasks on the executor and prints wall time, throughput, task
+     * latency and the peak number of live platform threads.
+     */
+    public void run(String name, ExecutorService executor, boolean virtual) throws Exception {
+        final Semaphore resources = new Semaphore(permits, true);
+        final ProcessExecutor processExecutor = processes ? new ProcessExecutor(1024, permits) : null;
+        if (processExecutor != null && virtual) {
+            processExecutor.setVirtualThreads(true);
+        }
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        System.gc();
+        THREADS.resetPeakThreadCount();
+        long start = System.currentTimeMillis();
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            final long queued = System.currentTimeMillis();
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    if (processExecutor != null) {
+                        processExecutor.execute(Arrays.asList("sleep", String.valueOf(latencyMs / 1000.0)), null,
+                                latencyMs + 60000);
+                    } else {
+                        resources.acquire();
+                        try {
+                            Thread.sleep(latencyMs);
+                        } finally {
+                            resources.release();
+                        }
+                    }
+                    latency.record(System.currentTimeMillis() - queued);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        executor.shutdown();
+        if (processExecutor != null) {
+            processExecutor.shutdown();
+        }
+
+        System.out.println(String.format("%-22s %8d ms %10.1f tasks/s   p50 %6d ms   p99 %6d ms   peak threads %5d",
+                name, elapsed, tasks * 1000.0 / elapsed, latency.getPercentile(50), latency.getPercentile(99),
+                THREADS.getPeakThreadCount()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long latencyMs = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        int permits = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int poolSize = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        boolean processes = args.length > 4 && args[4].equals("process");
+
+        System.out.println(tasks + " tasks blocking " + latencyMs + " ms on " + permits + " resources ("
+                + (processes ? "processes" : "sleep") + "), platform pool of " + poolSize + " threads");
+
+        BlockingExecutionBenchmark b = new BlockingExecutionBenchmark(tasks, latencyMs, permits, poolSize, processes);
+
+        b.run("platform pool", Executors.newFixedThreadPool(poolSize,
+                BlockingExecutors.threadFactory("BenchmarkPool", false)), false);
+        b.run("platform per task", BlockingExecutors.newExecutor("Benchmark", false), false);
+        if (BlockingExecutors.isVirtualThreadsAvailable()) {
+            b.run("virtual per task", BlockingExecutors.newExecutor("Benchmark", true), true);
+        } else {
+            System.out.println("Virtual threads need Java 21 or later, skipped.");
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private final int tasks;
+    private final long latencyMs;
+    private final int permits;
+    private final int poolSize;
+    private final boolean processes;
+}
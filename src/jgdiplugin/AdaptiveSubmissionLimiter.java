@@ -0,0 +1,250 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.Date;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent qsub commands with additive increase and
+ * multiplicative decrease (AIMD) of the limit.
+ *
+ * The limit grows by one per round of submissions while the qsub latency stays
+ * close to the latency of an idle qmaster, the lowest latency of the last
+ * accepted submissions. When the latency rises, the limit
+ * shrinks by a tenth; when qmaster can not be contacted or qsub times out, it
+ * is halved. So the submissions run at the highest concurrency qmaster
+ * sustains instead of all at once.
+ *
+ * Waiting submissions block on a {@link ReentrantLock} instead of a monitor,
+ * so they do not pin the carriers when they run on virtual threads.
+ */
+public class AdaptiveSubmissionLimiter {
+
+    public enum Outcome {
+
+        /**
+         * Qmaster accepted the job and returned its id.
+         */
+        SUCCESS,
+        /**
+         * Qmaster answered but did not accept the job. Its latency is no
+         * sample of the baseline, a rejection can be much faster than a
+         * submission.
+         */
+        REJECTED,
+        /**
+         * Qmaster could not be contacted or did not answer in time.
+         */
+        OVERLOAD,
+        /**
+         * The command failed before it reached qmaster, says nothing about
+         * its load.
+         */
+        IGNORED
+    }
+
+    public AdaptiveSubmissionLimiter(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        limit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+    }
+
+    /**
+     * Blocks until one more submission may run. Every acquire must be
+     * followed by a {@link #release(Outcome, long)}.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (inFlight >= (int) limit) {
+                throttled++;
+                waiting++;
+                try {
+                    while (inFlight >= (int) limit) {
+                        available.await();
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a submission and adjusts the limit to its outcome.
+     *
+     * @param latencyMs round trip time of qsub
+     */
+    public void release(Outcome outcome, long latencyMs) {
+        lock.lock();
+        try {
+            inFlight--;
+            long now = System.currentTimeMillis();
+
+            if (outcome == Outcome.OVERLOAD) {
+                overloads++;
+                decrease(now, OVERLOAD_DECREASE_FACTOR);
+            } else if (outcome == Outcome.SUCCESS || outcome == Outcome.REJECTED) {
+                if (outcome == Outcome.SUCCESS) {
+                    addBaselineSample(latencyMs);
+                }
+
+                if (baselineLatencyMs >= 0 && latencyMs > baselineLatencyMs * LATENCY_TOLERANCE + LATENCY_SLACK_MS) {
+                    decrease(now, SLOWDOWN_DECREASE_FACTOR);
+                } else if (outcome == Outcome.SUCCESS && inFlight + 1 >= (int) limit) {
+                    // only grow while the limit is what holds submissions back
+                    limit = Math.min(maxLimit, limit + 1.0 / limit);
+                }
+            }
+
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        lock.lock();
+        try {
+            this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+            limit = Math.min(limit, this.maxLimit);
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getThrottledCount() {
+        lock.lock();
+        try {
+            return throttled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getOverloadCount() {
+        lock.lock();
+        try {
+            return overloads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBaselineLatencyMs() {
+        lock.lock();
+        try {
+            return (long) baselineLatencyMs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the baseline at the minimum of the last samples, so it follows
+     * qmaster when it got slower for good and one fast outlier does not
+     * hold it down forever.
+     */
+    private void addBaselineSample(long latencyMs) {
+        baselineSamples[baselineIndex] = latencyMs;
+        baselineIndex = (baselineIndex + 1) % baselineSamples.length;
+        if (baselineCount < baselineSamples.length) {
+            baselineCount++;
+        }
+
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < baselineCount; i++) {
+            min = Math.min(min, baselineSamples[i]);
+        }
+        baselineLatencyMs = min;
+    }
+
+    private void decrease(long now, double factor) {
+        // one decrease per cooldown, the submissions which were already
+        // running when qmaster slowed down report the same slowdown
+        if (now - lastDecreaseTime < DECREASE_COOLDOWN_MS) {
+            return;
+        }
+        lastDecreaseTime = now;
+
+        int old = (int) limit;
+        limit = Math.max(MIN_LIMIT, limit * factor);
+        if ((int) limit != old) {
+            System.err.println(new Date() + ": Qmaster is slowing down, concurrent submissions limited to "
+                    + (int) limit);
+        }
+    }
+    private static final int MIN_LIMIT = 1;
+    private static final double OVERLOAD_DECREASE_FACTOR = 0.5;
+    private static final double SLOWDOWN_DECREASE_FACTOR = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final long LATENCY_SLACK_MS = 50;
+    private static final int BASELINE_WINDOW = 64;
+    private static final long DECREASE_COOLDOWN_MS = 1000;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int maxLimit;
+    private double limit;
+    private double baselineLatencyMs = -1;
+    private final long[] baselineSamples = new long[BASELINE_WINDOW];
+    private int baselineIndex;
+    private int baselineCount;
+    private long lastDecreaseTime;
+    private int inFlight;
+    private int waiting;
+    private long throttled;
+    private long overloads;
+}
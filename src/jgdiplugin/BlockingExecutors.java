@@ -0,0 +1,143 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for blocking work: qsub and qdel processes, their output streams,
+ * JDBC and retry waits. On Java 21 and later they can be virtual threads,
+ * which cost no platform thread while they block, so the concurrency is
+ * bounded by the semaphores around the real resources instead of by thread
+ * pools. Virtual threads are created through reflection, on older JVMs
+ * platform threads are used.
+ *
+ * Before Java 24 a virtual thread waiting inside a synchronized block pins
+ * its carrier thread, so the waits on the submission path, in the fair-share
+ * scheduler and the submission limiter, use a ReentrantLock instead.
+ */
+public final class BlockingExecutors {
+
+    private BlockingExecutors() {
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return VIRTUAL_THREADS_AVAILABLE;
+    }
+
+    /**
+     * @param virtual true for virtual threads, ignored if the JVM does not
+     * support them
+     * @return factory of daemon threads named name-1, name-2, ...
+     */
+    public static ThreadFactory threadFactory(final String name, boolean virtual) {
+        if (virtual && VIRTUAL_THREADS_AVAILABLE) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = BUILDER_NAME.invoke(builder, name + "-", 1L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return an executor which runs every task on a new virtual thread, or a
+     * cached pool of platform threads
+     */
+    public static ExecutorService newExecutor(String name, boolean virtual) {
+        ThreadFactory factory = threadFactory(name, virtual);
+
+        if (virtual && NEW_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    /**
+     * @return true if the thread is a virtual thread
+     */
+    public static boolean isVirtual(Thread t) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(t);
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Virtual threads are a preview feature before Java 21, creating a builder
+     * fails then.
+     */
+    private static boolean virtualThreadsSupported() {
+        if (OF_VIRTUAL == null || BUILDER_NAME == null || BUILDER_FACTORY == null) {
+            return false;
+        }
+        try {
+            OF_VIRTUAL.invoke(null);
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private static Method method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            return Class.forName(className).getMethod(name, parameterTypes);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+    private static final Method OF_VIRTUAL = method("java.lang.Thread", "ofVirtual");
+    private static final Method BUILDER_NAME = method("java.lang.Thread$Builder", "name", String.class, long.class);
+    private static final Method BUILDER_FACTORY = method("java.lang.Thread$Builder", "factory");
+    private static final Method IS_VIRTUAL = method("java.lang.Thread", "isVirtual");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = method("java.util.concurrent.Executors",
+            "newThreadPerTaskExecutor", ThreadFactory.class);
+    private static final boolean VIRTUAL_THREADS_AVAILABLE = virtualThreadsSupported();
+}
@@ -0,0 +1,479 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import jgdiplugin.util.LatencyHistogram;
+
+/**
+ * Runs job submissions on a bounded pool of workers with one queue per user.
+ * The workers take from the user queues in weighted round robin: a user with
+ * weight w gets w submissions per round. A user submitting thousands of jobs
+ * therefore delays the first submission of another user by one round at most.
+ * A submission waiting before its next attempt does not hold a worker, it is
+ * queued again after the delay, see {@link RetryableSubmission}.
+ *
+ * The workers wait on a {@link ReentrantLock} instead of a monitor, so virtual
+ * workers waiting for submissions do not pin their carrier threads.
+ */
+public class FairShareSubmissionScheduler {
+
+    /**
+     * A submission run in attempts. An attempt which fails and wants to be
+     * retried calls {@link Requeue#after(long)} and returns, the next attempt
+     * runs on a worker again once the delay elapsed.
+     */
+    public interface RetryableSubmission<T> {
+
+        /**
+         * Runs one attempt.
+         *
+         * @return the result of the submission, ignored if the attempt
+         * requeued it
+         */
+        T attempt(Requeue requeue) throws Exception;
+    }
+
+    /**
+     * Queues a submission again for its next attempt. Only the first call for
+     * an attempt counts.
+     */
+    public class Requeue {
+
+        private final Submission task;
+        private final AtomicBoolean used = new AtomicBoolean();
+
+        private Requeue(Submission task) {
+            this.task = task;
+        }
+
+        /**
+         * Queues the submission again after the delay.
+         */
+        public void after(long delayMs) {
+            if (!used.compareAndSet(false, true)) {
+                return;
+            }
+            // before it can reach a worker again
+            task.retried = true;
+
+            lock.lock();
+            try {
+                delayed++;
+            } finally {
+                lock.unlock();
+            }
+
+            if (delayMs <= 0) {
+                requeue(task);
+                return;
+            }
+            retryTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    requeue(task);
+                }
+            }, delayMs);
+        }
+
+        private boolean isUsed() {
+            return used.get();
+        }
+    }
+
+    /**
+     * Queue and metrics of one user.
+     */
+    public static class UserQueue {
+
+        private final String user;
+        private final LinkedList<Submission> queue = new LinkedList<Submission>();
+        private final LatencyHistogram waitTime = new LatencyHistogram();
+        private int weight = 1;
+        private int credit;
+        private long submitted;
+
+        private UserQueue(String user) {
+            this.user = user;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public int getQueueDepth() {
+            synchronized (this) {
+                return queue.size();
+            }
+        }
+
+        /**
+         * @return the time the submissions of the user waited in the queue
+         */
+        public LatencyHistogram getWaitTime() {
+            return waitTime;
+        }
+
+        public synchronized long getSubmittedCount() {
+            return submitted;
+        }
+
+        public synchronized int getWeight() {
+            return weight;
+        }
+    }
+
+    public FairShareSubmissionScheduler(int workers) {
+        this(workers, BlockingExecutors.threadFactory("FairShareSubmission", false));
+    }
+
+    /**
+     * @param threadFactory creates the workers, see {@link BlockingExecutors}
+     */
+    public FairShareSubmissionScheduler(int workers, ThreadFactory threadFactory) {
+        this.workers = new Thread[workers];
+        liveWorkers = workers;
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = threadFactory.newThread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            });
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Queues the submission of the user and waits for its result.
+     *
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    public <T> T submit(String user, final Callable<T> submission) throws InterruptedException, ExecutionException {
+        return submit(user, new RetryableSubmission<T>() {
+            public T attempt(Requeue requeue) throws Exception {
+                return submission.call();
+            }
+        });
+    }
+
+    /**
+     * Queues the submission of the user and waits for the result of its last
+     * attempt.
+     *
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    public <T> T submit(String user, RetryableSubmission<T> submission) throws InterruptedException,
+            ExecutionException {
+        Submission task = new Submission(user, submission);
+
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler is shut down");
+            }
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+
+        Object result;
+        try {
+            result = task.get();
+        } catch (InterruptedException ex) {
+            if (task.taken.compareAndSet(false, true)) {
+                task.cancel(false);
+                // still queued, it must not be submitted behind the caller's back
+                remove(user, task);
+                throw ex;
+            }
+            // already running or waiting for its next attempt: the job may be
+            // submitted, so its id must not get lost, the interrupt is kept
+            // for the caller
+            result = getUninterruptibly(task);
+            Thread.currentThread().interrupt();
+        }
+
+        @SuppressWarnings("unchecked")
+        T t = (T) result;
+        return t;
+    }
+
+    /**
+     * Adds the task to the queue of its user, called with the lock held.
+     */
+    private void enqueue(Submission task) {
+        task.queueTime = System.currentTimeMillis();
+
+        UserQueue q = queue(task.user);
+        boolean idle;
+        synchronized (q) {
+            idle = q.queue.isEmpty();
+            q.queue.add(task);
+        }
+        if (idle && !ring.contains(q)) {
+            q.credit = q.getWeight();
+            ring.add(q);
+        }
+        available.signal();
+    }
+
+    /**
+     * Queues a task for its next attempt, the workers keep running for it
+     * even after a shutdown.
+     */
+    private void requeue(Submission task) {
+        lock.lock();
+        try {
+            delayed--;
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String user, Submission task) {
+        lock.lock();
+        try {
+            UserQueue q = queues.get(user != null ? user : "");
+            if (q == null) {
+                return;
+            }
+            synchronized (q) {
+                if (!q.queue.remove(task) || !q.queue.isEmpty()) {
+                    return;
+                }
+            }
+            ring.remove(q);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Object getUninterruptibly(Submission task) throws ExecutionException {
+        while (true) {
+            try {
+                return task.get();
+            } catch (InterruptedException ex) {
+                // keep waiting, the caller is interrupted afterwards
+            }
+        }
+    }
+
+    /**
+     * Sets the weights of the users, users without a weight have weight 1.
+     */
+    public void setWeights(Map<String, Integer> weights) {
+        lock.lock();
+        try {
+            this.weights = new HashMap<String, Integer>(weights);
+            for (UserQueue q : queues.values()) {
+                synchronized (q) {
+                    q.weight = weightOf(q.user);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the queues of all users which have submitted jobs
+     */
+    public Map<String, UserQueue> getUserQueues() {
+        lock.lock();
+        try {
+            return new HashMap<String, UserQueue>(queues);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the current thread is a worker of this scheduler
+     */
+    public boolean isWorkerThread() {
+        Thread t = Thread.currentThread();
+        for (Thread w : workers) {
+            if (w == t) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops the workers after the queued submissions and the retries of the
+     * submissions waiting for their next attempt.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private UserQueue queue(String user) {
+        String key = user != null ? user : "";
+        UserQueue q = queues.get(key);
+        if (q == null) {
+            q = new UserQueue(key);
+            q.weight = weightOf(key);
+            queues.put(key, q);
+        }
+        return q;
+    }
+
+    private int weightOf(String user) {
+        Integer w = weights.get(user);
+        return w != null && w > 0 ? w : 1;
+    }
+
+    /**
+     * @return the next submission in weighted round robin order, null when
+     * shut down
+     */
+    private Submission next() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (ring.isEmpty()) {
+                if (shutdown && delayed == 0) {
+                    // wakes the other workers, they are done as well
+                    available.signalAll();
+                    return null;
+                }
+                available.await();
+            }
+
+            UserQueue q = ring.getFirst();
+            Submission task;
+            boolean empty;
+
+            synchronized (q) {
+                task = q.queue.removeFirst();
+                empty = q.queue.isEmpty();
+                q.submitted++;
+            }
+            q.waitTime.record(System.currentTimeMillis() - task.queueTime);
+
+            if (empty) {
+                ring.removeFirst();
+            } else if (--q.credit <= 0) {
+                // the user used up the share of this round
+                ring.removeFirst();
+                q.credit = q.getWeight();
+                ring.addLast(q);
+            }
+
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        try {
+            Submission task;
+            while ((task = next()) != null) {
+                // not if the caller gave up on it meanwhile, a retried task
+                // was taken by its first attempt
+                if (!task.isDone() && (task.retried || task.taken.compareAndSet(false, true))) {
+                    task.attempt();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // shut down
+        } finally {
+            lock.lock();
+            try {
+                if (--liveWorkers == 0) {
+                    retryTimer.cancel();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private class Submission extends FutureTask<Object> {
+
+        private final String user;
+        private final RetryableSubmission<?> submission;
+        private volatile long queueTime;
+        private volatile boolean retried;
+        // set by whoever comes first, the worker running it or the caller cancelling it
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        private Submission(String user, RetryableSubmission<?> submission) {
+            super(NO_CALLABLE);
+            this.user = user;
+            this.submission = submission;
+        }
+
+        private void attempt() {
+            Requeue requeue = new Requeue(this);
+            Object result;
+            try {
+                result = submission.attempt(requeue);
+            } catch (Throwable t) {
+                setException(t);
+                return;
+            }
+
+            if (!requeue.isUsed()) {
+                set(result);
+            }
+        }
+    }
+    private static final Callable<Object> NO_CALLABLE = new Callable<Object>() {
+        public Object call() {
+            return null;
+        }
+    };
+    private final Thread[] workers;
+    private final Timer retryTimer = new Timer("FairShareRetry", true);
+    private int liveWorkers;
+    // submissions waiting for their next attempt
+    private int delayed;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Map<String, UserQueue> queues = new HashMap<String, UserQueue>();
+    private final LinkedList<UserQueue> ring = new LinkedList<UserQueue>();
+    private Map<String, Integer> weights = new HashMap<String, Integer>();
+    private boolean shutdown;
+}
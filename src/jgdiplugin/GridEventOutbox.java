@@ -0,0 +1,282 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import plgrid.event.EventFinished;
+
+/**
+ * Append-only, memory mapped log of the finished events handed over to
+ * Pipeline. Every event gets a sequence number which is acknowledged once the
+ * event has been fired. After a restart the events which were logged but not
+ * acknowledged are read back sequentially and delivered again.
+ *
+ * Record layout: int length, long sequence, then the event fields. The
+ * header keeps the next sequence, the last acknowledged sequence and the end
+ * of the written records.
+ */
+public class GridEventOutbox {
+
+    public GridEventOutbox(File file, int capacity) throws IOException {
+        this.file = file;
+
+        raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putLong(NEXT_SEQUENCE_OFFSET, 1);
+            buffer.putLong(ACKED_SEQUENCE_OFFSET, 0);
+            buffer.putInt(WRITE_POSITION_OFFSET, HEADER_SIZE);
+        }
+
+        nextSequence = buffer.getLong(NEXT_SEQUENCE_OFFSET);
+        ackedSequence = buffer.getLong(ACKED_SEQUENCE_OFFSET);
+        writePosition = buffer.getInt(WRITE_POSITION_OFFSET);
+        lastSequenceAtOpen = nextSequence - 1;
+
+        inFlight = new TreeSet<Long>();
+        sequences = new IdentityHashMap<EventFinished, Long>();
+    }
+
+    /**
+     * Logs the event and assigns it the next sequence number. The event stays
+     * unacknowledged until {@link #delivered(EventFinished)} is called for it.
+     *
+     * @return sequence number of the event, 0 if it could not be logged
+     */
+    public synchronized long append(EventFinished evt) {
+        byte[] jobId = bytes(evt.getJobId());
+        byte[] taskId = bytes(evt.getTaskId());
+        byte[] error = bytes(evt.getError());
+
+        int length = 8 + 8 + 8 + 4 + 6 + jobId.length + taskId.length + error.length;
+
+        if (writePosition + 4 + length > buffer.capacity()) {
+            compact();
+            if (writePosition + 4 + length > buffer.capacity()) {
+                System.err.println("ERROR: Event outbox " + file + " is full, finished event of job "
+                        + evt.getJobId() + "." + evt.getTaskId() + " is not logged.");
+                return 0;
+            }
+        }
+
+        long seq = nextSequence++;
+
+        buffer.position(writePosition);
+        buffer.putInt(length);
+        buffer.putLong(seq);
+        buffer.putLong(evt.getFinishTime());
+        buffer.putLong(evt.getStartTime());
+        buffer.putInt(evt.getExitStatus());
+        putBytes(jobId);
+        putBytes(taskId);
+        putBytes(error);
+
+        writePosition = buffer.position();
+        buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+        buffer.putLong(NEXT_SEQUENCE_OFFSET, nextSequence);
+
+        inFlight.add(seq);
+        sequences.put(evt, seq);
+
+        return seq;
+    }
+
+    /**
+     * Acknowledges the event once it has been fired. The acknowledged sequence
+     * only moves past events which have all been delivered.
+     */
+    public synchronized void delivered(EventFinished evt) {
+        Long seq = sequences.remove(evt);
+        if (seq == null) {
+            return;
+        }
+
+        inFlight.remove(seq);
+
+        long acked = inFlight.isEmpty() ? nextSequence - 1 : inFlight.first() - 1;
+        if (acked > ackedSequence) {
+            ackedSequence = acked;
+            buffer.putLong(ACKED_SEQUENCE_OFFSET, ackedSequence);
+        }
+    }
+
+    /**
+     * Reads the logged events with a sequence number greater than the given
+     * one. Events which are returned are tracked as in flight again, so they
+     * are acknowledged when they are delivered a second time.
+     */
+    public synchronized List<EventFinished> replay(long fromSequence) {
+        return replay(fromSequence, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the logged events with a sequence number in (fromSequence,
+     * toSequence], see {@link #replay(long)}.
+     */
+    public synchronized List<EventFinished> replay(long fromSequence, long toSequence) {
+        List<EventFinished> ret = new LinkedList<EventFinished>();
+
+        int pos = HEADER_SIZE;
+        while (pos < writePosition) {
+            buffer.position(pos);
+            int length = buffer.getInt();
+            long seq = buffer.getLong();
+
+            if (seq > fromSequence && seq <= toSequence) {
+                long finishTime = buffer.getLong();
+                long startTime = buffer.getLong();
+                int exitStatus = buffer.getInt();
+                String jobId = getString();
+                String taskId = getString();
+                String error = getString();
+
+                EventFinished evt = new EventFinished(jobId, taskId, finishTime, startTime, exitStatus);
+                if (error != null) {
+                    evt.setError(error);
+                }
+
+                inFlight.add(seq);
+                sequences.put(evt, seq);
+                ret.add(evt);
+            }
+
+            pos += 4 + length;
+        }
+
+        return ret;
+    }
+
+    public synchronized long getAcknowledgedSequence() {
+        return ackedSequence;
+    }
+
+    public synchronized long getLastSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * @return the last sequence when the outbox was opened, the end of the
+     * previous run
+     */
+    public long getLastSequenceAtOpen() {
+        return lastSequenceAtOpen;
+    }
+
+    public synchronized void close() {
+        buffer.force();
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Drops the acknowledged records by moving the others to the beginning.
+     */
+    private void compact() {
+        int from = HEADER_SIZE;
+        int to = HEADER_SIZE;
+
+        while (from < writePosition) {
+            int length = buffer.getInt(from);
+            long seq = buffer.getLong(from + 4);
+            int recordSize = 4 + length;
+
+            if (seq > ackedSequence) {
+                if (from != to) {
+                    for (int i = 0; i < recordSize; i++) {
+                        buffer.put(to + i, buffer.get(from + i));
+                    }
+                }
+                to += recordSize;
+            }
+            from += recordSize;
+        }
+
+        writePosition = to;
+        buffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+    }
+
+    private void putBytes(byte[] b) {
+        if (b == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) b.length);
+            buffer.put(b);
+        }
+    }
+
+    private String getString() {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        buffer.get(b);
+        return new String(b, UTF8);
+    }
+
+    private static byte[] bytes(String s) {
+        if (s == null) {
+            return null;
+        }
+        byte[] b = s.getBytes(UTF8);
+        if (b.length > Short.MAX_VALUE) {
+            byte[] truncated = new byte[Short.MAX_VALUE];
+            System.arraycopy(b, 0, truncated, 0, truncated.length);
+            return truncated;
+        }
+        return b;
+    }
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4A474F42; // JGOB
+    private static final int MAGIC_OFFSET = 0;
+    private static final int NEXT_SEQUENCE_OFFSET = 4;
+    private static final int ACKED_SEQUENCE_OFFSET = 12;
+    private static final int WRITE_POSITION_OFFSET = 20;
+    private static final int HEADER_SIZE = 64;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final long lastSequenceAtOpen;
+    private final TreeSet<Long> inFlight;
+    private final Map<EventFinished, Long> sequences;
+    private long nextSequence;
+    private long ackedSequence;
+    private int writePosition;
+}
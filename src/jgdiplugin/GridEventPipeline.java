@@ -0,0 +1,323 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import plgrid.event.GridEvent;
+
+/**
+ * Decouples JGDI event intake from the delivery of grid events to Pipeline.
+ *
+ * Events are partitioned by job id, so all events of one job are delivered in
+ * order by the same consumer thread. Each partition is a preallocated ring
+ * buffer; consumers take whole batches out of their ring and deliver them
+ * outside of the lock. If a ring is full the event is kept in the partition's
+ * overflow list; only when that is full too the publisher waits for the
+ * consumer, so a stuck listener cannot make the plugin run out of memory.
+ */
+public class GridEventPipeline {
+
+    /**
+     * @param capacity events held in the ring of each partition
+     * @param maxOverflow events each partition holds beyond its ring before
+     * publishing blocks
+     */
+    public GridEventPipeline(JGDIPlugin plugin, int numPartitions, int capacity, int maxOverflow) {
+        this.plugin = plugin;
+        this.maxOverflow = maxOverflow;
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            partitions[i] = new Partition(size);
+            Thread t = new Thread(partitions[i], "GridEventPipeline-" + i);
+            t.setDaemon(true);
+            partitions[i].consumer = t;
+            t.start();
+        }
+    }
+
+    /**
+     * Hands the event over to the consumer of the job's partition. Blocks
+     * only while the partition's ring and overflow are both full.
+     */
+    public void publish(GridEvent evt) {
+        if (shutdown) {
+            return;
+        }
+        partitionOf(evt.getJobId()).offer(evt);
+        published.incrementAndGet();
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        for (Partition p : partitions) {
+            synchronized (p) {
+                p.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return number of events published but not yet delivered
+     */
+    public long getQueueDepth() {
+        long depth = 0;
+        for (Partition p : partitions) {
+            depth += p.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return age in milliseconds of the oldest event that has not been
+     * delivered yet, 0 if all partitions are drained
+     */
+    public long getLagMs() {
+        long oldest = 0;
+        long now = System.currentTimeMillis();
+
+        for (Partition p : partitions) {
+            long t = p.oldestPublishTime();
+            if (t > 0 && (oldest == 0 || t < oldest)) {
+                oldest = t;
+            }
+        }
+        return oldest == 0 ? 0 : now - oldest;
+    }
+
+    /**
+     * @return the largest publish-to-delivery time observed, in milliseconds
+     */
+    public long getMaxLagMs() {
+        return maxLagMs.get();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getOverflowCount() {
+        return overflowed.get();
+    }
+
+    /**
+     * @return number of times a publisher had to wait for a full partition
+     */
+    public long getBlockedPublishCount() {
+        return blockedPublishes.get();
+    }
+
+    private Partition partitionOf(String jobId) {
+        int h = jobId == null ? 0 : jobId.hashCode();
+        h ^= (h >>> 16);
+        return partitions[(h & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    private void deliver(GridEvent evt, long publishTime) {
+        try {
+            plugin.fireEvent(evt);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            // acknowledged even if it failed, one bad event must not hold
+            // back the outbox and the waiters
+            try {
+                plugin.eventDelivered(evt);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        delivered.incrementAndGet();
+
+        long lag = System.currentTimeMillis() - publishTime;
+        long max = maxLagMs.get();
+        while (lag > max && !maxLagMs.compareAndSet(max, lag)) {
+            max = maxLagMs.get();
+        }
+    }
+
+    private class Partition implements Runnable {
+
+        private final GridEvent[] events;
+        private final long[] publishTimes;
+        private final int mask;
+        private final LinkedList<Overflowed> overflow = new LinkedList<Overflowed>();
+        private long head;  // next slot to consume
+        private long tail;  // next slot to publish
+        private boolean waiting;
+        private Thread consumer;
+
+        Partition(int capacity) {
+            events = new GridEvent[capacity];
+            publishTimes = new long[capacity];
+            mask = capacity - 1;
+        }
+
+        synchronized void offer(GridEvent evt) {
+            // a listener publishing from the consumer thread must not wait for itself
+            if (overflow.size() >= maxOverflow && !shutdown && Thread.currentThread() != consumer) {
+                blockedPublishes.incrementAndGet();
+                System.err.println(new Date() + ": Event pipeline is full, waiting for the delivery of "
+                        + size() + " events.");
+                try {
+                    while (overflow.size() >= maxOverflow && !shutdown) {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    // keep the event, the bound is exceeded by one
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (shutdown) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+
+            // Once something overflowed, keep appending to the overflow list
+            // until the consumer drained it, otherwise order would break.
+            if (tail - head == events.length || !overflow.isEmpty()) {
+                overflow.add(new Overflowed(evt, now));
+                overflowed.incrementAndGet();
+            } else {
+                int slot = (int) (tail & mask);
+                events[slot] = evt;
+                publishTimes[slot] = now;
+                tail++;
+            }
+
+            if (waiting) {
+                notify();
+            }
+        }
+
+        synchronized long size() {
+            return (tail - head) + overflow.size();
+        }
+
+        synchronized long oldestPublishTime() {
+            if (tail > head) {
+                return publishTimes[(int) (head & mask)];
+            }
+            return overflow.isEmpty() ? 0 : overflow.getFirst().time;
+        }
+
+        /**
+         * Moves up to batch.length events to the given arrays. Blocks while the
+         * partition is empty.
+         */
+        private synchronized int take(GridEvent[] batch, long[] times) throws InterruptedException {
+            while (tail == head && overflow.isEmpty()) {
+                if (shutdown) {
+                    return -1;
+                }
+                waiting = true;
+                wait();
+                waiting = false;
+            }
+
+            int n = 0;
+            while (n < batch.length && tail > head) {
+                int slot = (int) (head & mask);
+                batch[n] = events[slot];
+                times[n] = publishTimes[slot];
+                events[slot] = null;
+                head++;
+                n++;
+            }
+
+            // refill the ring from the overflow list
+            boolean wasFull = overflow.size() >= maxOverflow;
+            while (!overflow.isEmpty() && tail - head < events.length) {
+                Overflowed o = overflow.removeFirst();
+                int slot = (int) (tail & mask);
+                events[slot] = o.evt;
+                publishTimes[slot] = o.time;
+                tail++;
+            }
+            if (wasFull && overflow.size() < maxOverflow) {
+                // wake the publishers waiting for room
+                notifyAll();
+            }
+
+            return n;
+        }
+
+        public void run() {
+            GridEvent[] batch = new GridEvent[BATCH_SIZE];
+            long[] times = new long[BATCH_SIZE];
+
+            while (true) {
+                int n;
+                try {
+                    n = take(batch, times);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+
+                if (n < 0) {
+                    break;
+                }
+
+                for (int i = 0; i < n; i++) {
+                    deliver(batch[i], times[i]);
+                    batch[i] = null;
+                }
+            }
+        }
+    }
+
+    private static class Overflowed {
+
+        private final GridEvent evt;
+        private final long time;
+
+        Overflowed(GridEvent evt, long time) {
+            this.evt = evt;
+            this.time = time;
+        }
+    }
+    private static final int BATCH_SIZE = 64;
+    private final JGDIPlugin plugin;
+    private final Partition[] partitions;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong blockedPublishes = new AtomicLong();
+    private final int maxOverflow;
+    private final AtomicLong maxLagMs = new AtomicLong();
+    private volatile boolean shutdown;
+}
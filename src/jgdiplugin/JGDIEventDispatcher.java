@@ -0,0 +1,140 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import com.sun.grid.jgdi.event.Event;
+import com.sun.grid.jgdi.event.EventListener;
+import com.sun.grid.jgdi.event.EventTypeEnum;
+import com.sun.grid.jgdi.event.JobDelEvent;
+import com.sun.grid.jgdi.event.JobEvent;
+import com.sun.grid.jgdi.event.JobTaskModEvent;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes the events of the plugin's single JGDI event client to the typed
+ * listeners. All subscriptions share one qmaster event client, so events of a
+ * job are delivered in one ordered stream by one delivery thread.
+ */
+public class JGDIEventDispatcher implements EventListener {
+
+    public interface JobFilter {
+
+        boolean accept(int jobId);
+    }
+
+    private final Map<Class<? extends Event>, EventListener> handlers;
+    private final Set<EventTypeEnum> subscription;
+    private volatile JobFilter jobFilter;
+    private volatile QmasterFailureDetector failureDetector;
+    private long filteredEvents;  // only written by the event delivery thread
+
+    public JGDIEventDispatcher() {
+        handlers = new ConcurrentHashMap<Class<? extends Event>, EventListener>();
+        subscription = EnumSet.noneOf(EventTypeEnum.class);
+    }
+
+    /**
+     * Subscribes to the given event type and routes events of the given class
+     * (and its subclasses) to the handler.
+     */
+    public void register(EventTypeEnum type, Class<? extends Event> eventClass, EventListener handler) {
+        synchronized (subscription) {
+            subscription.add(type);
+        }
+        handlers.put(eventClass, handler);
+    }
+
+    public Set<EventTypeEnum> getSubscription() {
+        synchronized (subscription) {
+            return EnumSet.copyOf(subscription);
+        }
+    }
+
+    /**
+     * Sets the filter which decides whether job events are routed at all.
+     * JGDI event clients can not filter job events by owner or job number on
+     * the qmaster side, so unwanted events are dropped here before any
+     * listener work is done for them.
+     *
+     * @param filter the filter, null to route the events of all jobs
+     */
+    public void setJobFilter(JobFilter filter) {
+        this.jobFilter = filter;
+    }
+
+    /**
+     * Every received event is a sign of life of qmaster.
+     */
+    public void setFailureDetector(QmasterFailureDetector detector) {
+        this.failureDetector = detector;
+    }
+
+    public long getFilteredEventCount() {
+        return filteredEvents;
+    }
+
+    public void eventOccured(Event evt) {
+        QmasterFailureDetector detector = failureDetector;
+        if (detector != null) {
+            detector.recordSuccess(0);
+        }
+
+        JobFilter filter = jobFilter;
+
+        if (filter != null) {
+            int jobId = -1;
+
+            if (evt instanceof JobTaskModEvent) {
+                jobId = ((JobTaskModEvent) evt).getJobId();
+            } else if (evt instanceof JobDelEvent) {
+                jobId = ((JobDelEvent) evt).getJobNumber();
+            } else if (evt instanceof JobEvent) {
+                jobId = ((JobEvent) evt).getJobId();
+            }
+
+            if (jobId >= 0 && !filter.accept(jobId)) {
+                filteredEvents++;
+                return;
+            }
+        }
+
+        Class<?> c = evt.getClass();
+
+        while (c != null && Event.class.isAssignableFrom(c)) {
+            EventListener handler = handlers.get(c);
+            if (handler != null) {
+                try {
+                    handler.eventOccured(evt);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+                return;
+            }
+            c = c.getSuperclass();
+        }
+    }
+}
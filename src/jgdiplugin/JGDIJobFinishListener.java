@@ -50,7 +50,9 @@ public class JGDIJobFinishListener implements EventListener {
                 // Get the job Id
                 String jobId = String.valueOf(jfue.getJobId());
                 String taskId = String.valueOf(jfue.getTaskId());
-                
+
+                // the task is gone, even if its usage can't be parsed
+                plugin.getTaskStateCoalescer().finished(jfue.getJobId(), jfue.getTaskId());
                 
                 if (jfue.getLoadValueNames().size() != 0) {
                     // Get the exit status
@@ -87,13 +89,17 @@ public class JGDIJobFinishListener implements EventListener {
 
                     if (!failed) {
                         if (endTime > 0) {
-                            plugin.fireEvent(new EventFinished(jobId, taskId, endTime, startTime, exit_status));
+                            plugin.publishEvent(new EventFinished(jobId, taskId, endTime, startTime, exit_status));
                         } else {
                             System.err.println("ERROR: Job " + jobId + "." + taskId + " finished but endTime is " + endTime);
+                            plugin.jobUsageUnknown(jobId);
                         }
+                    } else {
+                        plugin.jobUsageUnknown(jobId);
                     }
                 } else {
                     System.err.println("ERROR: Job " + jobId + "." + taskId + " finished but doesn't have load values.");
+                    plugin.jobUsageUnknown(jobId);
                 }
                 
             } catch (Exception ex) {
@@ -101,8 +107,10 @@ public class JGDIJobFinishListener implements EventListener {
             }
         } else if (evt instanceof JobDelEvent) {
             JobDelEvent jde = (JobDelEvent) evt;
-            
-            plugin.fireEvent(new EventFinished(String.valueOf(jde.getJobNumber()), "0", jde.getTimestamp() * 1000, -88));
+
+            plugin.getTaskStateCoalescer().finished(jde.getJobNumber(), 0);
+            plugin.removeOwnedJob(jde.getJobNumber());
+            plugin.publishEvent(new EventFinished(String.valueOf(jde.getJobNumber()), "0", jde.getTimestamp() * 1000, -88));
         }
     }
 }
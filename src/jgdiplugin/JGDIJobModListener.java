@@ -29,6 +29,7 @@ import com.sun.grid.jgdi.event.JobTaskModEvent;
 import plgrid.event.EventFinished;
 import plgrid.event.EventQueued;
 import plgrid.event.EventRunning;
+import plgrid.event.GridEvent;
 
 /**
  *
@@ -52,23 +53,38 @@ public class JGDIJobModListener implements EventListener {
 
                 String jobId = String.valueOf(jtme.getJobId());
                 String taskId = String.valueOf(jtme.getTaskNumber());
-                
+
+                GridEvent gridEvent = null;
+
                 switch (state) {
                     case STATE_RUNNING + STATE_DELETED: // dr
-                        plugin.fireEvent(new EventFinished(String.valueOf(jobId), "0", jtme.getTimestamp() * 1000, -88));
+                        gridEvent = new EventFinished(String.valueOf(jobId), "0", jtme.getTimestamp() * 1000, -88);
                         break;
                     case STATE_RUNNING:
-                        plugin.fireEvent(new EventRunning(jobId, taskId));
+                        gridEvent = new EventRunning(jobId, taskId);
                         break;
                     case STATE_QUEUED:
                     case (STATE_QUEUED + STATE_WAITING):
-                        plugin.fireEvent(new EventQueued(jobId, taskId));
+                        // q and qw are the same state for Pipeline
+                        state = STATE_QUEUED + STATE_WAITING;
+                        gridEvent = new EventQueued(jobId, taskId);
                         break;
                     case (STATE_QUEUED + STATE_WAITING + STATE_ERROR): // Eqw
-                        plugin.fireEvent(new EventQueued(jobId, taskId, "Eqw"));
+                        gridEvent = new EventQueued(jobId, taskId, "Eqw");
                         break;
-                    default:
-                        System.out.println(" WARNING: Job " + jtme.getJobId() + " changed status to " + state);
+                }
+
+                // Repeated states of the same task are dropped by the coalescer,
+                // so unhandled states are reported only once per transition.
+                boolean changed = plugin.getTaskStateCoalescer().stateChanged(jtme.getJobId(), jtme.getTaskNumber(), state, gridEvent);
+
+                if (changed && state == STATE_RUNNING + STATE_DELETED) {
+                    // the job is reported finished, its tasks are not tracked anymore
+                    plugin.getTaskStateCoalescer().finished(jtme.getJobId(), 0);
+                }
+
+                if (changed && gridEvent == null) {
+                    System.out.println(" WARNING: Job " + jtme.getJobId() + " changed status to " + state);
                 }
             } catch (Exception ex) {
                 ex.printStackTrace();
@@ -29,13 +29,33 @@ import com.sun.grid.jgdi.JGDIException;
 import com.sun.grid.jgdi.JGDIFactory;
 import com.sun.grid.jgdi.configuration.*;
 import com.sun.grid.jgdi.event.EventTypeEnum;
+import com.sun.grid.jgdi.event.JobDelEvent;
+import com.sun.grid.jgdi.event.JobFinalUsageEvent;
+import com.sun.grid.jgdi.event.JobTaskModEvent;
+import com.sun.grid.jgdi.event.QmasterGoesDownEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import jgdiplugin.accounting.ARCODatabase;
 import jgdiplugin.accounting.SGEAccountingThread;
+import jgdiplugin.daemon.JGDIDaemonClient;
+import jgdiplugin.util.LongHashSet;
+import jgdiplugin.util.LongIntHashMap;
+import plgrid.GridEventListener;
 import plgrid.GridJobArgument;
 import plgrid.GridJobInfo;
 import plgrid.GridJobSubmitInfo;
 import plgrid.PipelineGridPlugin;
+import plgrid.event.EventFinished;
+import plgrid.event.GridEvent;
 import plgrid.exception.PLGrid_InvalidMethodException;
 
 /**
@@ -48,7 +68,20 @@ import plgrid.exception.PLGrid_InvalidMethodException;
  */
 public class JGDIPlugin extends PipelineGridPlugin {
 
+    /**
+     * Connects to qmaster, or forwards all calls to the job state daemon at
+     * JGDI_DAEMON_SOCKET if that is set.
+     */
     public JGDIPlugin() {
+        this(System.getenv("JGDI_DAEMON_SOCKET"));
+    }
+
+    /**
+     * @param daemonAddress the address of the
+     * {@link jgdiplugin.daemon.JobStateDaemon} to
+     * forward all calls to, null to connect to qmaster
+     */
+    public JGDIPlugin(String daemonAddress) {
 
         // SGE Environment variables are required to be set before creating this object.
         SGE_ROOT = System.getenv("SGE_ROOT");
@@ -69,357 +102,1660 @@ public class JGDIPlugin extends PipelineGridPlugin {
 
         // i.e bootstrap:///usr/sge@loni:6444
         bootstrapURL = "bootstrap://" + SGE_ROOT + "@" + SGE_CELL + ":" + SGE_PORT;
-
-        try {
-            jgdi = JGDIFactory.newSynchronizedInstance(bootstrapURL);
-            if (!TEST_MODE) {
-                registerListeners();
-            }
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        defaultBootstrapURL = bootstrapURL;
+
+        if (daemonAddress != null && daemonAddress.trim().length() > 0) {
+            // the daemon owns the qmaster connection and the accounting ingestion
+            endpoints = null;
+            failureDetector = null;
+            eventPipeline = null;
+            taskStateCoalescer = null;
+            reconciler = null;
+            jobStateWaiters = null;
+
+            daemonClient = new JGDIDaemonClient(daemonAddress.trim());
+            daemonClient.registerEventListener(new GridEventListener() {
+                public void eventOccurred(List<GridEvent> events) {
+                    for (GridEvent evt : events) {
+                        fireEvent(evt);
+                    }
+                }
+            });
+            System.out.println("JGDIPlugin (version: " + JGDI_PLUGIN_VERSION + ") started as client of the "
+                    + "job state daemon at " + daemonAddress.trim());
             return;
         }
 
+        endpoints = new QmasterEndpoints(bootstrapURL, new QmasterEndpoints.MasterChangeListener() {
+            public void qmasterMoved(String url, String oldHost, String newHost) {
+                if (url.equals(bootstrapURL)) {
+                    // a shadow master took over, reconnect right away
+                    qmasterMoved = true;
+                    requestQmasterProbe();
+                }
+            }
+        });
+
+        failureDetector = new QmasterFailureDetector(PHI_SUSPECT_THRESHOLD);
+        failureDetector.addStateListener(new QmasterFailureDetector.StateListener() {
+            public void qmasterStateChanged(QmasterFailureDetector.State oldState, QmasterFailureDetector.State newState) {
+                if (newState == QmasterFailureDetector.State.SUSPECT && heartbeat != null) {
+                    // confirm or clear the suspicion right away
+                    heartbeat.probeNow();
+                }
+            }
+        });
+
+        sessionPool = new JGDISessionPool(bootstrapURL, DEFAULT_SESSION_POOL_SIZE);
+        sessionPool.setFailureDetector(failureDetector);
+
+        eventPipeline = new GridEventPipeline(this, EVENT_PIPELINE_PARTITIONS, EVENT_PIPELINE_CAPACITY,
+                EVENT_PIPELINE_MAX_OVERFLOW);
+        taskStateCoalescer = new JobTaskStateCoalescer(this, COALESCE_WINDOW_MS);
+        reconciler = new QmasterReconnectReconciler(this);
+        jobStateWaiters = new JobStateWaiters(this);
+
+        // The JGDI bootstrap, which is slow on an NFS SGE_ROOT, and the local
+        // files start concurrently.
+        ExecutorService startupExecutor = Executors.newFixedThreadPool(STARTUP_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "JGDIPluginStartup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        Future<JGDI> bootstrap = startupExecutor.submit(startupReport.timed("JGDI bootstrap", new Callable<JGDI>() {
+            public JGDI call() throws Exception {
+                return JGDIFactory.newSynchronizedInstance(bootstrapURL);
+            }
+        }));
+        Future<GridEventOutbox> outbox = startupExecutor.submit(startupReport.timed("Event outbox",
+                new Callable<GridEventOutbox>() {
+                    public GridEventOutbox call() throws Exception {
+                        return new GridEventOutbox(new File("gridEventOutbox").getAbsoluteFile(),
+                                EVENT_OUTBOX_CAPACITY);
+                    }
+                }));
+        Future<SubmissionJournal> journal = startupExecutor.submit(startupReport.timed("Submission journal",
+                new Callable<SubmissionJournal>() {
+                    public SubmissionJournal call() throws Exception {
+                        return new SubmissionJournal(new File("submissionJournal").getAbsoluteFile());
+                    }
+                }));
+        Future<JobStateSnapshot> snapshot = startupExecutor.submit(startupReport.timed("Job state snapshot",
+                new Callable<JobStateSnapshot>() {
+                    public JobStateSnapshot call() throws Exception {
+                        return new JobStateSnapshot(new File("jobStateSnapshot").getAbsoluteFile());
+                    }
+                }));
+        startupExecutor.shutdown();
+
         if (!TEST_MODE) {
-            // turn on SGE Accounting thread if it is off.
+            // turn on SGE Accounting thread if it is off. Its database opens
+            // on the first finished job lookup, not at startup.
             sgeAccountingThread = new SGEAccountingThread(SGE_ROOT, SGE_CELL);
             sgeAccountingThread.setName("SGEAccountingThread");
+        }
+
+        eventOutbox = startupResult(outbox,
+                "ERROR: Failed to open event outbox, finished events will not be replayed after restart.");
+        submissionJournal = startupResult(journal,
+                "ERROR: Failed to open submission journal, submissions will not be recovered after restart.");
+        jobStateSnapshot = startupResult(snapshot,
+                "ERROR: Failed to open job state snapshot, job states will not be restored after restart.");
+
+        // restored before the event client is registered, so the older
+        // snapshot never overwrites the state of a new event
+        JobStateSnapshot.State restoredState = null;
+        if (jobStateSnapshot != null) {
+            long begin = startupReport.begin();
+            restoredState = jobStateSnapshot.load();
+            if (restoredState != null) {
+                restoreJobState(restoredState);
+            }
+            jobStateSnapshot.start(this, JOB_STATE_SNAPSHOT_INTERVAL_MS);
+            startupReport.end("Job state restore", begin);
+        }
+
+        if (sgeAccountingThread != null) {
+            if (restoredState != null) {
+                sgeAccountingThread.setStartPosition(restoredState.getAccountingFileKey(),
+                        restoredState.getAccountingPosition());
+            }
             sgeAccountingThread.start();
         }
 
-        HeartBeatTimerTask tt = new HeartBeatTimerTask();
+        jgdi = startupResult(bootstrap, "ERROR: Failed to connect to qmaster at " + bootstrapURL);
+        if (jgdi == null) {
+            reportStartup();
+            return;
+        }
+
+        if (!TEST_MODE) {
+            long begin = startupReport.begin();
+            try {
+                registerListeners();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                reportStartup();
+                return;
+            }
+            startupReport.end("Event client registration", begin);
+        }
 
-        // Create a timer which will do a heart beat check of SGE's Qmaster
-        heartBeatTimer = new Timer();
-        heartBeatTimer.scheduleAtFixedRate(tt, PING_QMASTER_INTERVAL_MS, PING_QMASTER_INTERVAL_MS);
+        long begin = startupReport.begin();
+        recoverSubmissions();
+        startupReport.end("Submission recovery", begin);
 
-        System.out.println("JGDIPlugin (version: " + JGDI_PLUGIN_VERSION + ") started.");
-    }
+        // publishes what happened since the snapshot once the preferences
+        // tell where finished jobs are looked up
+        warmRestartReconcilePending = restoredState != null && !TEST_MODE;
 
-    private class HeartBeatTimerTask extends TimerTask {
+        // heart beat check of SGE's Qmaster
+        heartbeat = new QmasterHeartbeat(this);
 
-        @Override
-        public void run() {
-            pingQmaster();
-        }
+        reportStartup();
+        System.out.println("JGDIPlugin (version: " + JGDI_PLUGIN_VERSION + ") started.");
     }
 
     @Override
     public void setPreferences(Map<String, String> prefs) {
         super.setPreferences(prefs);
 
+        if (daemonClient != null) {
+            daemonClient.setPreferences(prefs);
+            return;
+        }
+
+        if (!replayedOutbox && eventOutbox != null) {
+            // Pipeline is listening by now, deliver the events it missed while
+            // restarting; the events of this run are still in the pipeline
+            replayedOutbox = true;
+            int n = replayEvents(eventOutbox.getAcknowledgedSequence(), eventOutbox.getLastSequenceAtOpen());
+            if (n > 0) {
+                System.out.println("Replayed " + n + " finished events which were not delivered before restart.");
+            }
+        }
+
         finishedJobRetrievalMethod = prefs.get("GridFinishedJobRetrievalMethod");
 
-        if (finishedJobRetrievalMethod == null || finishedJobRetrievalMethod.trim().length() == 0) {
+        String poolSize = prefs.get("GridJGDISessionPoolSize");
+        if (poolSize != null && poolSize.trim().length() > 0) {
+            try {
+                int size = Integer.parseInt(poolSize.trim());
+                if (size > 0 && size != sessionPool.getMaxSessions()) {
+                    JGDISessionPool old = sessionPool;
+                    JGDISessionPool pool = new JGDISessionPool(bootstrapURL, size);
+                    pool.setFailureDetector(failureDetector);
+                    pool.setBorrowTimeout(old.getBorrowTimeout());
+                    sessionPool = pool;
+                    old.shutdown();
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid GridJGDISessionPoolSize preference: " + poolSize);
+            }
+        }
+
+        String borrowTimeout = prefs.get("GridJGDISessionBorrowTimeout");
+        if (borrowTimeout != null && borrowTimeout.trim().length() > 0) {
+            try {
+                sessionPool.setBorrowTimeout(Long.parseLong(borrowTimeout.trim()));
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid GridJGDISessionBorrowTimeout preference: " + borrowTimeout);
+            }
+        }
+
+        String maxSubmissions = prefs.get("GridMaxConcurrentSubmissions");
+        if (maxSubmissions != null && maxSubmissions.trim().length() > 0) {
+            try {
+                submissionLimiter.setMaxLimit(Integer.parseInt(maxSubmissions.trim()));
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid GridMaxConcurrentSubmissions preference: " + maxSubmissions);
+            }
+        }
+
+        String retryDeadline = prefs.get("GridSubmitRetryDeadline");
+        if (retryDeadline != null && retryDeadline.trim().length() > 0) {
+            try {
+                submitRetryPolicy.setDeadlineMs(Long.parseLong(retryDeadline.trim()) * 1000);
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid GridSubmitRetryDeadline preference: " + retryDeadline);
+            }
+        }
+
+        // Run the blocking work on virtual threads, needs Java 21
+        boolean virtual = Boolean.parseBoolean(prefs.get("GridUseVirtualThreads"));
+        if (virtual && !BlockingExecutors.isVirtualThreadsAvailable()) {
+            System.err.println("GridUseVirtualThreads needs Java 21 or later, using platform threads.");
+            virtual = false;
+        }
+        if (virtual != useVirtualThreads) {
+            useVirtualThreads = virtual;
+            processExecutor.setVirtualThreads(virtual);
+            // the old executor finishes its tasks, a caller which still
+            // submits to it is rejected and moves on to the new one
+            ExecutorService oldExecutor = blockingExecutor;
+            blockingExecutor = BlockingExecutors.newExecutor("JGDIPluginBlocking", virtual);
+            oldExecutor.shutdown();
+            // recreated below with the other kind of workers
+            shutdownFairShareScheduler();
+            System.out.println(new Date() + ": Blocking work runs on " + (virtual ? "virtual" : "platform")
+                    + " threads.");
+        }
+
+        String maxProcesses = prefs.get("GridMaxConcurrentProcesses");
+        if (maxProcesses != null && maxProcesses.trim().length() > 0) {
+            try {
+                processExecutor.setMaxProcesses(Integer.parseInt(maxProcesses.trim()));
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid GridMaxConcurrentProcesses preference: " + maxProcesses);
+            }
+        }
+
+        // Per user queues for the submissions, weights as "user:weight,user:weight"
+        if (Boolean.parseBoolean(prefs.get("GridFairShareSubmission"))) {
+            if (fairShareScheduler == null) {
+                // virtual workers are cheap, the submission limiter bounds the qsub processes
+                fairShareScheduler = new FairShareSubmissionScheduler(
+                        useVirtualThreads ? FAIR_SHARE_VIRTUAL_WORKERS : FAIR_SHARE_WORKERS,
+                        BlockingExecutors.threadFactory("FairShareSubmission", useVirtualThreads));
+            }
+
+            Map<String, Integer> weights = new HashMap<String, Integer>();
+            String weightsPref = prefs.get("GridFairShareWeights");
+            if (weightsPref != null) {
+                for (String entry : weightsPref.split(",")) {
+                    int colon = entry.lastIndexOf(':');
+                    if (colon == -1) {
+                        continue;
+                    }
+                    try {
+                        weights.put(entry.substring(0, colon).trim(), Integer.valueOf(entry.substring(colon + 1).trim()));
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid GridFairShareWeights entry: " + entry);
+                    }
+                }
+            }
+            fairShareScheduler.setWeights(weights);
+        } else {
+            shutdownFairShareScheduler();
+        }
+
+        // Hint submissions to the least loaded of the candidate queues: "hard", "soft" or "off"
+        String queueHinting = prefs.get("GridQueueHinting");
+        String candidates = prefs.get("GridQueueHintCandidates");
+        if (queueHinting != null && (queueHinting.equalsIgnoreCase("hard") || queueHinting.equalsIgnoreCase("soft"))) {
+            List<String> queues = new ArrayList<String>();
+            if (candidates != null) {
+                for (String q : candidates.split(",")) {
+                    if (q.trim().length() > 0) {
+                        queues.add(q.trim());
+                    }
+                }
+            }
+            queueHintCandidates = queues;
+            softQueueHint = queueHinting.equalsIgnoreCase("soft");
+            if (queueLoadMonitor == null) {
+                queueLoadMonitor = new QueueLoadMonitor(this, QUEUE_LOAD_REFRESH_MS);
+            }
+        } else if (queueLoadMonitor != null) {
+            queueLoadMonitor.shutdown();
+            queueLoadMonitor = null;
+        }
+
+        // Submit non-array jobs as shared job scripts instead of long qsub command lines
+        if (Boolean.parseBoolean(prefs.get("GridSubmitViaJobScript"))) {
+            String dir = prefs.get("GridJobScriptDirectory");
+            File scriptDir = new File(dir != null && dir.trim().length() > 0 ? dir.trim() : "jobScripts").getAbsoluteFile();
+            if (jobScriptStore == null || !jobScriptStore.getDirectory().equals(scriptDir)) {
+                if (jobScriptStore != null) {
+                    jobScriptStore.shutdown();
+                }
+                jobScriptStore = new JobScriptStore(scriptDir);
+            }
+        } else if (jobScriptStore != null) {
+            jobScriptStore.shutdown();
+            jobScriptStore = null;
+        }
+
+        // Comma separated bootstrap URLs of the qmaster endpoints to fail over to
+        String bootstrapURLs = prefs.get("GridQmasterBootstrapURLs");
+        if (bootstrapURLs != null && bootstrapURLs.trim().length() > 0) {
+            List<String> urls = new ArrayList<String>();
+            for (String url : bootstrapURLs.split(",")) {
+                if (url.trim().length() > 0) {
+                    urls.add(url.trim());
+                }
+            }
+            endpoints.setBootstrapURLs(urls);
+        }
+
+        // Only route events of jobs submitted or queried by Pipeline
+        filterEventsByOwnedJobs = Boolean.parseBoolean(prefs.get("GridFilterEventsByOwnedJobs"));
+        if (eventDispatcher != null) {
+            eventDispatcher.setJobFilter(filterEventsByOwnedJobs ? ownedJobFilter : null);
+        }
+
+        if (finishedJobRetrievalMethod == null || finishedJobRetrievalMethod.trim().length() == 0) {
+
+            if (arcoDatabase != null) {
+                // turn off ARCo if it is on.
+                arcoDatabase = new ARCODatabase(this);
+                arcoDatabase.shutdown();
+            }
+
+            if (sgeAccountingThread == null) {
+                // turn on SGE Accounting thread if it is off.
+                sgeAccountingThread = new SGEAccountingThread(SGE_ROOT, SGE_CELL);
+                sgeAccountingThread.start();
+            }
+        } else if (finishedJobRetrievalMethod.toLowerCase().equals("arco")) {
+            if (sgeAccountingThread != null) {
+                // turn off SGE Accounting thread if it is on.
+                sgeAccountingThread.shutdown();
+            }
+
+            if (arcoDatabase == null) {
+                // turn on SGE ARCo if it is off.
+                arcoDatabase = new ARCODatabase(this);
+            }
+        }
+
+        if (warmRestartReconcilePending && jgdi != null) {
+            // jobs whose accounting records are not read yet are retried,
+            // see QmasterReconnectReconciler
+            warmRestartReconcilePending = false;
+            startReconciliation(jgdi);
+        }
+    }
+
+    /**
+     * @return the start time of the last complete pass of the finished job
+     * source, records of jobs finished before it can be looked up
+     */
+    long getAccountingSyncStartTime() {
+        SGEAccountingThread t = sgeAccountingThread;
+        String method = finishedJobRetrievalMethod;
+        if (t == null || (method != null && method.trim().length() > 0)) {
+            // ARCo is queried directly
+            return Long.MAX_VALUE;
+        }
+        return t.getLastSyncStartTime();
+    }
+
+    private void registerListeners() throws JGDIException {
+        jobFinishListener = new JGDIJobFinishListener(this);
+        jobModListener = new JGDIJobModListener(this);
+        qmasterDownListener = new JGDIQmasterDownListener(this);
+
+        eventDispatcher = new JGDIEventDispatcher();
+        eventDispatcher.setFailureDetector(failureDetector);
+        eventDispatcher.register(EventTypeEnum.JobFinalUsage, JobFinalUsageEvent.class, jobFinishListener);
+        eventDispatcher.register(EventTypeEnum.JobDel, JobDelEvent.class, jobFinishListener);
+        eventDispatcher.register(EventTypeEnum.JobTaskMod, JobTaskModEvent.class, jobModListener);
+        eventDispatcher.register(EventTypeEnum.QmasterGoesDown, QmasterGoesDownEvent.class, qmasterDownListener);
+
+        // One event client for all subscriptions: a single qmaster event client slot,
+        // a single delivery thread and one ordered event stream.
+        if (filterEventsByOwnedJobs) {
+            eventDispatcher.setJobFilter(ownedJobFilter);
+        }
+
+        eventClient = JGDIFactory.createEventClient(bootstrapURL, 0);
+        eventClient.subscribe(eventDispatcher.getSubscription());
+        eventClient.commit();
+        eventClient.addEventListener(eventDispatcher);
+    }
+
+    /**
+     * Queues a grid event for delivery to Pipeline. Called from the JGDI event
+     * delivery thread, which waits for Pipeline's listeners only when the
+     * event pipeline is full.
+     */
+    void publishEvent(GridEvent evt) {
+        if (eventOutbox != null && evt instanceof EventFinished) {
+            eventOutbox.append((EventFinished) evt);
+        }
+        if (evt instanceof EventFinished) {
+            JobScriptStore store = jobScriptStore;
+            if (store != null) {
+                store.finished(evt.getJobId());
+            }
+            deleteFailedDependents((EventFinished) evt);
+        }
+        eventPipeline.publish(evt);
+    }
+
+    /**
+     * Deletes the held jobs of a graph which depend on a failed job, SGE
+     * would release them.
+     */
+    private void deleteFailedDependents(EventFinished evt) {
+        final Map<String, String> dependents = graphDependents.finished(evt);
+        if (dependents.isEmpty()) {
+            return;
+        }
+
+        System.out.println(new Date() + ": Job " + evt.getJobId() + " failed with exit status "
+                + evt.getExitStatus() + ", deleting the " + dependents.size() + " jobs depending on it.");
+        deleteDependents(dependents);
+    }
+
+    private void deleteDependents(final Map<String, String> dependents) {
+        submitBlocking(new Callable<Void>() {
+            public Void call() {
+                for (KillJobResult r : killJobs(dependents, false).values()) {
+                    if (!r.isDeleted()) {
+                        System.err.println("ERROR: Failed to delete dependent job " + r);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * The final usage of the job was missing or could not be read, its exit
+     * status is unknown.
+     */
+    void jobUsageUnknown(String jobId) {
+        graphDependents.usageUnknown(jobId);
+    }
+
+    /**
+     * Called by the event pipeline once the event has been fired.
+     */
+    void eventDelivered(GridEvent evt) {
+        if (eventOutbox != null && evt instanceof EventFinished) {
+            eventOutbox.delivered((EventFinished) evt);
+        }
+        jobStateWaiters.eventDelivered(evt);
+    }
+
+    /**
+     * Waits for the job or task to reach the state without polling qmaster,
+     * see {@link JobStateWaiters}.
+     *
+     * @param taskId the task, null for any task of the job
+     * @param timeoutMs 0 to wait without timeout
+     */
+    public Future<GridEvent> waitForJobState(String jobId, String taskId, JobStateWaiters.JobState state,
+            long timeoutMs) {
+        return jobStateWaiters.waitFor(jobId, taskId, state, timeoutMs);
+    }
+
+    /**
+     * Calls back when the job or task reached the state, see
+     * {@link #waitForJobState(String, String, JobStateWaiters.JobState, long)}.
+     */
+    public void whenJobState(String jobId, String taskId, JobStateWaiters.JobState state, long timeoutMs,
+            JobStateWaiters.Callback callback) {
+        jobStateWaiters.waitFor(jobId, taskId, state, timeoutMs, callback);
+    }
+
+    /**
+     * Fires again the logged finished events with a sequence number greater
+     * than the given one.
+     *
+     * @return number of replayed events
+     */
+    public int replayEvents(long fromSequence) {
+        return replayEvents(fromSequence, Long.MAX_VALUE);
+    }
+
+    /**
+     * Publishes the logged finished events with a sequence number in
+     * (fromSequence, toSequence] again.
+     */
+    public int replayEvents(long fromSequence, long toSequence) {
+        if (eventOutbox == null) {
+            return 0;
+        }
+
+        List<EventFinished> events = eventOutbox.replay(fromSequence, toSequence);
+        for (EventFinished evt : events) {
+            eventPipeline.publish(evt);
+        }
+        return events.size();
+    }
+
+    /**
+     * @return sequence number of the last finished event which has been fired,
+     * see {@link #replayEvents(long)}
+     */
+    public long getAcknowledgedEventSequence() {
+        return eventOutbox == null ? 0 : eventOutbox.getAcknowledgedSequence();
+    }
+
+    public JGDISessionPool getSessionPool() {
+        return sessionPool;
+    }
+
+    /**
+     * @return the queue load monitor, null if GridQueueHinting is off
+     */
+    public QueueLoadMonitor getQueueLoadMonitor() {
+        return queueLoadMonitor;
+    }
+
+    /**
+     * @return the fair share scheduler, null if GridFairShareSubmission is off
+     */
+    public FairShareSubmissionScheduler getFairShareScheduler() {
+        return fairShareScheduler;
+    }
+
+    /**
+     * Submits the job on a thread for blocking work, a virtual thread with the
+     * GridUseVirtualThreads preference, so the caller's thread is not held
+     * while qsub runs or the submission waits for qmaster.
+     */
+    public Future<String> submitJobAsync(final GridJobSubmitInfo gji) {
+        return submitBlocking(new Callable<String>() {
+            public String call() {
+                return submitJob(gji);
+            }
+        });
+    }
+
+    /**
+     * Deletes the jobs on a thread for blocking work, see
+     * {@link #submitJobAsync(GridJobSubmitInfo)}.
+     */
+    public Future<Map<String, KillJobResult>> killJobsAsync(final Collection<String> jobIds, final String username,
+            final boolean force) {
+        return submitBlocking(new Callable<Map<String, KillJobResult>>() {
+            public Map<String, KillJobResult> call() {
+                return killJobs(jobIds, username, force);
+            }
+        });
+    }
+
+    /**
+     * Submits to the current executor for blocking work. The preferences can
+     * replace it meanwhile, then the task goes to the new one.
+     */
+    private <T> Future<T> submitBlocking(Callable<T> task) {
+        while (true) {
+            ExecutorService executor = blockingExecutor;
+            try {
+                return executor.submit(task);
+            } catch (RejectedExecutionException ex) {
+                if (executor == blockingExecutor) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets the scheduler finish the queued submissions; new ones no longer
+     * see it, those which still reach it move on.
+     */
+    private void shutdownFairShareScheduler() {
+        FairShareSubmissionScheduler old = fairShareScheduler;
+        if (old != null) {
+            fairShareScheduler = null;
+            old.shutdown();
+        }
+    }
+
+    public boolean isUsingVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * @return the current executor for blocking work, the preferences may
+     * replace it and shut this one down
+     */
+    public ExecutorService getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    public SubmitRetryPolicy getSubmitRetryPolicy() {
+        return submitRetryPolicy;
+    }
+
+    public AdaptiveSubmissionLimiter getSubmissionLimiter() {
+        return submissionLimiter;
+    }
+
+    public ProcessExecutor getProcessExecutor() {
+        return processExecutor;
+    }
+
+    public QmasterEndpoints getEndpoints() {
+        return endpoints;
+    }
+
+    public QmasterFailureDetector getFailureDetector() {
+        return failureDetector;
+    }
+
+    public GridEventPipeline getEventPipeline() {
+        return eventPipeline;
+    }
+
+    JobTaskStateCoalescer getTaskStateCoalescer() {
+        return taskStateCoalescer;
+    }
+
+    /**
+     * Remembers a job which belongs to Pipeline, see
+     * GridFilterEventsByOwnedJobs preference.
+     */
+    void addOwnedJob(int jobId) {
+        synchronized (ownedJobs) {
+            if (ownedJobs.add(jobId) && ownedJobs.size() > MAX_OWNED_JOBS) {
+                pruneOwnedJobs();
+            }
+            if (maxOwnedJobId == 0 || isNewerJob(jobId, maxOwnedJobId)) {
+                maxOwnedJobId = jobId;
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest half of the owned jobs. Jobs normally leave the set
+     * with their JobDel event, so this only happens when those were missed;
+     * the dropped jobs are the ones most likely to be gone already. The age
+     * counts back from the newest job, across the wrap of the job numbers.
+     */
+    private void pruneOwnedJobs() {
+        long[] jobs = ownedJobs.toArray();
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = (long) jobAge((int) jobs[i], maxOwnedJobId) << 32 | jobs[i];
+        }
+        Arrays.sort(jobs);
+        for (int i = jobs.length - jobs.length / 2; i < jobs.length; i++) {
+            ownedJobs.remove(jobs[i] & 0xFFFFFFFFL);
+        }
+        System.err.println(new Date() + ": WARNING: More than " + MAX_OWNED_JOBS
+                + " jobs owned by Pipeline, forgot the " + jobs.length / 2 + " oldest ones.");
+    }
+
+    /**
+     * Marks the start of a submission whose job number is not known yet.
+     * Until it ends, events of the jobs newer than the returned floor are
+     * accepted, because they may belong to it.
+     */
+    private int beginOwnedSubmission() {
+        synchronized (ownedJobs) {
+            int floor = maxOwnedJobId;
+            Integer count = submissionFloors.get(floor);
+            submissionFloors.put(floor, count == null ? 1 : count + 1);
+            updateLowestSubmissionFloor();
+            return floor;
+        }
+    }
+
+    private void endOwnedSubmission(int floor) {
+        synchronized (ownedJobs) {
+            Integer count = submissionFloors.get(floor);
+            if (count == null || count == 1) {
+                submissionFloors.remove(floor);
+            } else {
+                submissionFloors.put(floor, count - 1);
+            }
+            updateLowestSubmissionFloor();
+        }
+    }
+
+    private void updateLowestSubmissionFloor() {
+        int lowest = NO_SUBMISSION_FLOOR;
+        for (int floor : submissionFloors.keySet()) {
+            if (lowest == NO_SUBMISSION_FLOOR || isNewerJob(lowest, floor)) {
+                lowest = floor;
+            }
+        }
+        lowestSubmissionFloor = lowest;
+    }
+
+    /**
+     * SGE job numbers wrap at MAX_SEQNUM back to 1, a job is newer than
+     * another if it is less than half of the number space ahead of it.
+     */
+    private static boolean isNewerJob(int jobId, int other) {
+        int ahead = jobAge(other, jobId);
+        return ahead > 0 && ahead < MAX_SEQNUM / 2;
+    }
+
+    /**
+     * @return how many job numbers the job was submitted before the newest
+     * one, modulo the number space
+     */
+    private static int jobAge(int jobId, int newest) {
+        return ((newest - jobId) % MAX_SEQNUM + MAX_SEQNUM) % MAX_SEQNUM;
+    }
+
+    void removeOwnedJob(int jobId) {
+        synchronized (ownedJobs) {
+            ownedJobs.remove(jobId);
+        }
+    }
+
+    boolean isOwnedJob(int jobId) {
+        synchronized (ownedJobs) {
+            return ownedJobs.contains(jobId);
+        }
+    }
+
+    long[] getOwnedJobs() {
+        synchronized (ownedJobs) {
+            return ownedJobs.toArray();
+        }
+    }
+
+    public StartupReport getStartupReport() {
+        return startupReport;
+    }
+
+    private void reportStartup() {
+        startupReport.finished();
+        System.out.println(new Date() + ": JGDIPlugin " + startupReport);
+    }
+
+    /**
+     * @return result of a startup task, null if it failed
+     */
+    private static <T> T startupResult(Future<T> f, String error) {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            System.err.println(error);
+            ex.getCause().printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @return the tracked task states, Pipeline's jobs and the accounting
+     * position, for the job state snapshot
+     */
+    JobStateSnapshot.State captureJobState() {
+        LongIntHashMap states = taskStateCoalescer.copyStates();
+        long[] keys = states.keys();
+        int[] taskStates = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            taskStates[i] = states.get(keys[i], JobTaskStateCoalescer.NO_STATE);
+        }
+
+        SGEAccountingThread t = sgeAccountingThread;
+        return new JobStateSnapshot.State(System.currentTimeMillis(), t != null ? t.getFileKey() : null,
+                t != null ? t.getPosition() : 0, keys, taskStates, getOwnedJobs());
+    }
+
+    /**
+     * Restores the task states and Pipeline's jobs of the snapshot. The
+     * reconciler remembers them, so once the event client is registered only
+     * the transitions since the snapshot are published.
+     */
+    private void restoreJobState(JobStateSnapshot.State state) {
+        long start = System.currentTimeMillis();
+
+        long[] keys = state.getTaskKeys();
+        int[] states = state.getTaskStates();
+        for (int i = 0; i < keys.length; i++) {
+            taskStateCoalescer.restoreState(JobTaskStateCoalescer.jobIdOf(keys[i]),
+                    JobTaskStateCoalescer.taskNumberOf(keys[i]), states[i]);
+        }
+        for (long jobId : state.getOwnedJobs()) {
+            addOwnedJob((int) jobId);
+        }
+
+        reconciler.snapshot();
+
+        System.out.println(new Date() + ": Restored " + keys.length + " task states and "
+                + state.getOwnedJobs().length + " jobs from the job state snapshot of " + new Date(state.getTime())
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void removeOwnedJob(String jobId) {
+        try {
+            removeOwnedJob(Integer.parseInt(jobId));
+        } catch (NumberFormatException ex) {
+            // not a job of this cluster
+        }
+    }
+
+    private void addOwnedJob(String jobId) {
+        try {
+            int dot = jobId.indexOf('.');
+            addOwnedJob(Integer.parseInt(dot == -1 ? jobId : jobId.substring(0, dot)));
+        } catch (NumberFormatException ex) {
+            // not a job of this cluster
+        }
+    }
+
+    private boolean isQmasterAlive() {
+        return isQmasterAlive && failureDetector.isAvailable();
+    }
+
+    /**
+     * Checks whether qmaster is alive. While it is, a cheap request goes over
+     * the existing JGDI connection. Only after a failure a new JGDI instance
+     * is bootstrapped, and the event client is registered again when qmaster
+     * is back.
+     *
+     * @return true if qmaster is alive
+     */
+    public boolean pingQmaster() {
+        synchronized (qmasterLock) {
+            return probeQmaster();
+        }
+    }
+
+    private boolean probeQmaster() {
+        if (isQmasterAlive && jgdi != null) {
+            if (!qmasterMoved) {
+                try {
+                    long start = System.currentTimeMillis();
+                    jgdi.getEventClientList();
+                    failureDetector.recordProbe(System.currentTimeMillis() - start);
+                    sessionPool.evictIdle(SESSION_MAX_IDLE_MS);
+                    return true;
+                } catch (Exception ex) {
+                    // we don't need to print errors when qmaster is down
+                }
+
+                System.err.println(new Date() + ": W A R N I N G: Qmaster CRASH detected");
+            } else {
+                System.err.println(new Date() + ": W A R N I N G: Qmaster moved to another host");
+            }
+            isQmasterAlive = false;
+            readiness.markDown();
+            sessionPool.invalidateAll();
+            failureDetector.markUnavailable();
+            reconciler.snapshot();
+            try {
+                if (eventClient != null) {
+                    eventClient.close();
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        try {
+            qmasterMoved = false;
+            QmasterEndpoints.Connection c = endpoints.connect(CONNECT_TIMEOUT_MS);
+            if (c == null) {
+                return false;
+            }
+            JGDI j = c.getJGDI();
+
+            if (!c.getBootstrapURL().equals(bootstrapURL)) {
+                System.err.println(new Date() + ": Failing over from " + bootstrapURL + " to " + c.getBootstrapURL());
+                bootstrapURL = c.getBootstrapURL();
+                sessionPool.setBootstrapURL(bootstrapURL);
+                sessionPool.invalidateAll();
+            }
+
+            System.err.println(new Date() + ": S U C C E S S: Qmaster restored");
+
+            JGDI old = jgdi;
+            jgdi = j;
+            if (old != null) {
+                try {
+                    old.close();
+                } catch (Exception ex) {
+                    // the old connection is dead anyway
+                }
+            }
+
+            // sessions are opened while the event client is registered
+            startSessionPrestart();
+            if (!TEST_MODE) {
+                registerListeners();
+                startReconciliation(j);
+            }
+            isQmasterAlive = true;
+            failureDetector.markAvailable();
+            readiness.markReady();
+            return true;
+        } catch (Exception ex) {
+            // we don't need to print errors when qmaster is down
+        }
+
+        return false;
+    }
+
+    /**
+     * Reports a failed JGDI request to the failure detector if it failed
+     * because qmaster could not be contacted.
+     */
+    private boolean qmasterRequestFailed(JGDIException ex) {
+        String msg = ex.getMessage();
+        if (msg != null && (msg.contains("unable to contact qmaster") || msg.contains("can't connect to service")
+                || msg.contains("got read error"))) {
+            System.err.println("Qmaster is unavailable. ");
+            failureDetector.recordFailure(msg);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isQmasterConnectError(String err) {
+        return err.contains("can't connect to service") || err.contains("got read error");
+    }
+
+    /**
+     * Gets the job list over a pooled session.
+     */
+    private List<Job> queryJobList() throws JGDIException {
+        // the pool can be replaced by setPreferences, release to the one borrowed from
+        JGDISessionPool pool = sessionPool;
+        JGDISessionPool.PooledSession session = pool.borrow();
+        boolean failed = false;
+        try {
+            long start = System.currentTimeMillis();
+            List<Job> jobs = session.getJGDI().getJobList();
+            failureDetector.recordSuccess(System.currentTimeMillis() - start);
+            return jobs;
+        } catch (JGDIException ex) {
+            failed = qmasterRequestFailed(ex);
+            throw ex;
+        } finally {
+            pool.release(session, failed);
+        }
+    }
+
+    /**
+     * Gets a job over a pooled session.
+     */
+    private Job queryJob(int jobNumber) throws JGDIException {
+        JGDISessionPool pool = sessionPool;
+        JGDISessionPool.PooledSession session = pool.borrow();
+        boolean failed = false;
+        try {
+            long start = System.currentTimeMillis();
+            Job job = session.getJGDI().getJob(jobNumber);
+            failureDetector.recordSuccess(System.currentTimeMillis() - start);
+            return job;
+        } catch (JGDIException ex) {
+            failed = qmasterRequestFailed(ex);
+            throw ex;
+        } finally {
+            pool.release(session, failed);
+        }
+    }
+
+    /**
+     * Makes the heartbeat probe qmaster right away.
+     */
+    public void requestQmasterProbe() {
+        if (heartbeat != null) {
+            heartbeat.probeNow();
+        }
+    }
+
+    private void startSessionPrestart() {
+        final JGDISessionPool pool = sessionPool;
+        Thread t = new Thread("JGDISessionPrestart") {
+            @Override
+            public void run() {
+                pool.prestart(pool.getMaxSessions());
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void startReconciliation(final JGDI j) {
+        Thread t = new Thread("QmasterReconnectReconciler") {
+            @Override
+            public void run() {
+                reconciler.reconcile(j);
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Blocks until qmaster is alive. Waiting threads are woken up by the
+     * heartbeat as soon as qmaster is back.
+     */
+    public void waitForQmasterAlive() {
+        if (readiness.isReady()) {
+            // nobody noticed an outage yet, check it now
+            pingQmaster();
+        }
+
+        while (true) {
+            try {
+                readiness.awaitReady();
+                return;
+            } catch (InterruptedException ex) {
+                // do nothing
+            }
+        }
+    }
+
+    /**
+     * Blocks until qmaster is alive or the timeout elapsed.
+     *
+     * @return true if qmaster is alive
+     */
+    public boolean waitForQmasterAlive(long timeout, TimeUnit unit) throws InterruptedException {
+        if (readiness.isReady()) {
+            pingQmaster();
+        }
+        return readiness.awaitReady(timeout, unit);
+    }
+
+    /**
+     * Runs the continuation as soon as qmaster is alive, without blocking the
+     * caller. The continuation runs on the heartbeat thread and must not
+     * block.
+     */
+    public void whenQmasterAlive(Runnable continuation) {
+        readiness.whenReady(continuation);
+    }
+
+    @Override
+    public String submitJob(GridJobSubmitInfo gji) {
+        if (daemonClient != null) {
+            return daemonClient.submitJob(gji);
+        }
+        return submitJob(gji, Collections.<String>emptyList());
+    }
 
-            if (arcoDatabase != null) {
-                // turn off ARCo if it is on.
-                arcoDatabase = new ARCODatabase(this);
-                arcoDatabase.shutdown();
+    /**
+     * Submits the jobs of the graph in one pass. Every job is submitted with
+     * -hold_jid on the jobs it depends on, so SGE starts it as soon as they
+     * are finished, without a round trip through Pipeline.
+     *
+     * SGE also releases a held job when a job it depends on failed or was
+     * deleted. When a job of the graph finishes with a non-zero exit status,
+     * the plugin therefore deletes all jobs depending on it, see
+     * {@link JobGraphDependents}. Wrapping the jobs to exit with 100 on
+     * failure would keep them in qmaster in error state instead.
+     *
+     * @return the job id for every job of the graph, in the order of the
+     * graph; "ERROR:..." for jobs which could not be submitted, including the
+     * jobs depending on them
+     */
+    public String[] submitJobGraph(JobGraph graph) {
+        String[] jobIds = new String[graph.size()];
+
+        for (int job : graph.topologicalOrder()) {
+            StringBuilder holdJobIds = new StringBuilder();
+            String failedDependency = null;
+
+            for (int d : graph.getDependencies(job)) {
+                String parentId = jobIds[d];
+                if (parentId.startsWith("ERROR:")) {
+                    failedDependency = "job " + d + " of the graph";
+                    break;
+                }
+                if (holdJobIds.length() > 0) {
+                    holdJobIds.append(',');
+                }
+                // array job ids carry their task range
+                int dot = parentId.indexOf('.');
+                holdJobIds.append(dot == -1 ? parentId : parentId.substring(0, dot));
             }
 
-            if (sgeAccountingThread == null) {
-                // turn on SGE Accounting thread if it is off.
-                sgeAccountingThread = new SGEAccountingThread(SGE_ROOT, SGE_CELL);
-                sgeAccountingThread.start();
-            }
-        } else if (finishedJobRetrievalMethod.toLowerCase().equals("arco")) {
-            if (sgeAccountingThread != null) {
-                // turn off SGE Accounting thread if it is on.
-                sgeAccountingThread.shutdown();
+            if (failedDependency != null) {
+                jobIds[job] = "ERROR:Not submitted, " + failedDependency + " could not be submitted.";
+                continue;
             }
 
-            if (arcoDatabase == null) {
-                // turn on SGE ARCo if it is off.
-                arcoDatabase = new ARCODatabase(this);
+            List<String> extraQsubArgs = new ArrayList<String>();
+            if (holdJobIds.length() > 0) {
+                extraQsubArgs.add("-hold_jid");
+                extraQsubArgs.add(holdJobIds.toString());
             }
-        }
-
-    }
 
-    private void registerListeners() throws JGDIException {
-        jobFinishListener = new JGDIJobFinishListener(this);
-        finishEventClient = JGDIFactory.createEventClient(bootstrapURL, 0);
-        finishEventClient.subscribe(EventTypeEnum.JobFinalUsage);
-        finishEventClient.subscribe(EventTypeEnum.JobDel);
-        finishEventClient.commit();
-        finishEventClient.addEventListener(jobFinishListener);
+            // a parent failing while qsub runs must find the edge
+            for (int d : graph.getDependencies(job)) {
+                graphDependents.expect(jobIds[d]);
+            }
 
-        jobModListener = new JGDIJobModListener(this);
-        modEventClient = JGDIFactory.createEventClient(bootstrapURL, 0);
-        modEventClient.subscribe(EventTypeEnum.JobTaskMod);
-        modEventClient.commit();
-        modEventClient.addEventListener(jobModListener);
+            jobIds[job] = submitJob(graph.get(job), extraQsubArgs);
 
-        qmasterDownListener = new JGDIQmasterDownListener(this);
-        downEventClient = JGDIFactory.createEventClient(bootstrapURL, 0);
-        downEventClient.subscribe(EventTypeEnum.QmasterGoesDown);
-        downEventClient.commit();
-        downEventClient.addEventListener(qmasterDownListener);
-    }
+            boolean parentFailed = false;
+            for (int d : graph.getDependencies(job)) {
+                if (jobIds[job].startsWith("ERROR:")) {
+                    graphDependents.cancel(jobIds[d]);
+                } else if (graphDependents.register(jobIds[d], jobIds[job], graph.get(job).getUsername())) {
+                    parentFailed = true;
+                }
+            }
+            if (parentFailed) {
+                System.out.println(new Date() + ": A job which job " + jobIds[job]
+                        + " depends on failed during its submission, deleting it.");
+                deleteDependents(Collections.singletonMap(jobIds[job], graph.get(job).getUsername()));
+            }
+        }
 
-    private boolean isQmasterAlive() {
-        return isQmasterAlive;
+        return jobIds;
     }
 
-    public void pingQmaster() {
+    /**
+     * Submits the job with additional qsub arguments.
+     */
+    public String submitJob(GridJobSubmitInfo gji, List<String> extraQsubArgs) {
+        QsubSubmission submission = new QsubSubmission(gji, extraQsubArgs);
 
-        // The Ping Qmaster only works with SGE 6.2 u1
-        // This check is for convenience. 
-        if (SGE_ROOT.endsWith("6.2u1")) {
-            try {
-                JGDI j = JGDIFactory.newSynchronizedInstance(bootstrapURL);
+        try {
+            while (true) {
+                FairShareSubmissionScheduler scheduler = fairShareScheduler;
 
-                if (!isQmasterAlive) {
-                    System.err.println(new Date() + ": S U C C E S S: Qmaster restored");
-                    isQmasterAlive = true;
-                    jgdi = j;
-                    registerListeners();
-                } else {
-                    j.close();
+                if (scheduler == null || scheduler.isWorkerThread()) {
+                    return submission.run();
                 }
-                return;
-            } catch (Exception ex) {
-                // we don't need to print errors when qmaster is down
-                //ex.printStackTrace();
-            }
 
-            if (isQmasterAlive) {
-                System.err.println(new Date() + ": W A R N I N G: Qmaster CRASH detected");
-                isQmasterAlive = false;
                 try {
-                    finishEventClient.close();
-                    modEventClient.close();
-                    downEventClient.close();
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+                    return scheduler.submit(gji.getUsername(), submission);
+                } catch (RejectedExecutionException ex) {
+                    // the preferences replaced or removed the scheduler meanwhile
                 }
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return "ERROR:Unable to submit job. The submission was interrupted before it started\n\n     Date: "
+                    + new Date();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return "ERROR:Unable to submit job. Internal error occurred\n\n     Date: " + new Date()
+                    + "\n   Reason: " + ex.getMessage();
         }
     }
 
-    public synchronized void waitForQmasterAlive() {
-        pingQmaster();
-        while (!isQmasterAlive) {
-            try {
-                Thread.sleep(PING_QMASTER_INTERVAL_MS);
-            } catch (Exception ex) {
-                // do nothing
-            }
+    /**
+     * One job submission and its qsub attempts. Run by the caller, it waits
+     * between the attempts. Run by the fair share scheduler, each retry is
+     * queued again after its delay, so the workers submit the jobs of other
+     * users meanwhile.
+     */
+    private class QsubSubmission implements FairShareSubmissionScheduler.RetryableSubmission<String> {
+
+        QsubSubmission(GridJobSubmitInfo gji, List<String> extraQsubArgs) {
+            this.gji = gji;
+            this.extraQsubArgs = extraQsubArgs;
+            array = gji.getSubmissionType() == GridJobSubmitInfo.SUBMISSION_ARRAY;
+            attempts = submitRetryPolicy.begin();
         }
-    }
 
-    @Override
-    public String submitJob(GridJobSubmitInfo gji) {
-        String ret = "";
-        Process process = null;
-        int offset = 9;
-
-        long sleepTime = 2000;
-        boolean needsContinue = false;
-        String err = "";
-        int i = 1;
-        do {
-            if (i > 1) {
-                try {
-                    Thread.sleep(sleepTime);
-                } catch (Exception ex) {
-                    // nothing to report
+        /**
+         * Runs the attempts on the calling thread.
+         */
+        String run() {
+            floor = beginOwnedSubmission();
+            try {
+                String result;
+                while ((result = attemptOnce(true)) == null) {
+                    waitBeforeRetry(retryClass, retryDelay);
                 }
+                return result;
+            } finally {
+                endOwnedSubmission(floor);
             }
+        }
 
+        public String attempt(FairShareSubmissionScheduler.Requeue requeue) {
+            if (!started) {
+                started = true;
+                floor = beginOwnedSubmission();
+            }
 
+            String result;
             try {
-                // Make the qsub command
-                StringBuilder cmd = new StringBuilder();
+                result = attemptOnce(false);
+            } catch (RuntimeException ex) {
+                endOwnedSubmission(floor);
+                throw ex;
+            }
 
-                String username = gji.getUsername();
-                if (username == null) {
-                    throw new Exception("Failed to get Username");
-                }
+            if (result == null) {
+                retryLater(retryClass, retryDelay, requeue);
+                return null;
+            }
+            endOwnedSubmission(floor);
+            return result;
+        }
 
-                // Add sudo -u username if privilegeEscalation is set to true
-                if (gji.getPrivilegeEscalation()) {
-                    cmd.append("sudo -E -u ");
-                    cmd.append(username);
-                    cmd.append(" ");
-                }
+        /**
+         * @param waitForQmaster wait for qmaster while it is down instead of
+         * counting a failed attempt
+         * @return the job id or the errors, null if the submission is to be
+         * retried after {@link #retryDelay}
+         */
+        private String attemptOnce(boolean waitForQmaster) {
+            int attempt = attempts.getAttempt();
+            String err;
+            SubmitRetryPolicy.ErrorClass errorClass;
 
-                String executableLocation = gji.getCommand();
+            try {
+                List<String> command = buildQsubCommand(gji, extraQsubArgs);
+                Map<String, String> env = buildQsubEnvironment(gji);
+
+                if (token == null && submissionJournal != null) {
+                    String hash = SubmissionJournal.contentHash(command, env);
+
+                    // array job ids carry their task range, only single jobs are recovered
+                    String recovered = array ? null : submissionJournal.claimRecovered(hash);
+                    if (recovered != null) {
+                        System.out.println(new Date() + ": Job " + recovered
+                                + " was submitted before the restart, not submitting it again.");
+                        addOwnedJob(recovered);
+                        attempts.succeeded();
+                        return recovered;
+                    }
 
-                if (executableLocation == null) {
-                    throw new Exception("Failed to get Executable Location");
+                    try {
+                        token = submissionJournal.begin(hash);
+                    } catch (IOException ex) {
+                        System.err.println("ERROR: Failed to write the submission journal: " + ex.getMessage());
+                    }
                 }
 
-                List<GridJobArgument> arguments = gji.getArguments();
+                // after hashing, the queue picked after a restart differs
+                addQueueHint(command, gji, extraQsubArgs);
 
-                if (arguments == null || arguments.contains(null)) {
-                    throw new Exception("Failed to get command line arguments");
+                if (token != null) {
+                    command = withSubmitToken(command, token);
                 }
 
-                cmd.append("qsub ");    // qsub command
-
-                if (gji.getSubmissionType() == GridJobSubmitInfo.SUBMISSION_ARRAY) {
-                    cmd.append(gji.getCommand());   // executable
-                    offset += 6;
+                boolean alive = isQmasterAlive()
+                        || waitForQmaster && waitForQmasterAlive(attempts.getRemainingMs(), TimeUnit.MILLISECONDS);
+                if (!alive) {
+                    err = "Qmaster is unavailable\n";
+                    errorClass = SubmitRetryPolicy.ErrorClass.TRANSIENT_CONNECTIVITY;
                 } else {
-                    cmd.append(gji.getNativeSpecification()); // qsub arguments
-                    cmd.append(" -o ");                             // output stream path flag
-                    cmd.append(gji.getOutputPath());    // output stream path
-                    cmd.append(" -e ");                             // error stream path flag
-                    cmd.append(gji.getErrorPath());     // error stream path
-
-
-                    Properties envProperties = gji.getEnvironmentProperties();
-                    String[] environment = null;
-
-                    if (envProperties != null) {
-                        environment = new String[envProperties.size()];
-                        int ei = 0;
-                        for (String varName : envProperties.stringPropertyNames()) {
-                            StringBuilder sb = new StringBuilder(varName);
-                            sb.append("=");
-                            sb.append(envProperties.getProperty(varName));
-                            environment[ei++] = sb.toString();
+                    if (maybeSubmitted && !array) {
+                        // the last qsub may have reached qmaster before it failed
+                        maybeSubmitted = false;
+                        String jobId = findJobBySubmitToken(token);
+                        if (jobId != null) {
+                            addOwnedJob(jobId);
+                            scriptSubmitted(jobId, command);
+                            submissionJournal.completed(token, jobId);
+                            attempts.succeeded();
+                            return jobId;
                         }
                     }
 
-                    if (environment != null && environment.length > 0) {
-                        cmd.append(" -v ");
-                        int s_index = 0;
-                        for (String s : environment) {
-                            if (s_index > 0) {
-                                cmd.append(",");
-                            }
+                    ProcessExecutor.Result result = runQsub(command, env, array);
 
-                            cmd.append(s);
-                            s_index++;
-                        }
+                    // Read job Id from the output
+                    String response = result.getStdout();
+                    String jobId = parseJobId(response, array);
 
-                        cmd.append(" ");
+                    if (jobId != null) {
+                        failureDetector.recordSuccess(result.getElapsedMs());
+                        addOwnedJob(jobId);
+                        scriptSubmitted(jobId, command);
+                        if (token != null) {
+                            submissionJournal.completed(token, jobId);
+                        }
+                        attempts.succeeded();
+                        return jobId;
                     }
 
-                    cmd.append(" ");
+                    err = result.getStderr();
+                    if (result.isTimedOut()) {
+                        err += "qsub did not finish within " + QSUB_TIMEOUT_MS / 1000 + " seconds\n";
+                    }
 
-                    cmd.append(gji.getCommand());   // executable
+                    errorClass = SubmitRetryPolicy.classify(err);
+                    if (errorClass == SubmitRetryPolicy.ErrorClass.TRANSIENT_CONNECTIVITY) {
+                        failureDetector.recordFailure(err.trim());
+                        maybeSubmitted = token != null;
+                    }
 
-                    // Arguments of executable
-                    for (GridJobArgument arg : arguments) {
-                        String argValue = arg.getValue();
-                        if (argValue != null) {
-                            cmd.append(" ");
-                            cmd.append(argValue);
-                        }
+                    // we should NOT be here if the has been successfully submitted.
+                    if (err.trim().length() > 0) {
+                        err += "\n";
                     }
-                }
 
-                if (!isQmasterAlive()) {
-                    waitForQmasterAlive();
-                    needsContinue = true;
-                    continue;
+                    err += "ERROR: " + response;
                 }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                StringBuilder errorMsg = new StringBuilder("Unable to submit job. Internal error occurred\n");
+
+                errorMsg.append("\n     Date: ").append(new Date().toString());
+                errorMsg.append("\n   Reason: ").append(ex.getMessage());
 
-                StringTokenizer st = new StringTokenizer(cmd.toString());
-                String[] command = new String[st.countTokens()];
+                err = errorMsg.toString();
 
-                for (int k = 0; k < command.length; k++) {
-                    command[k] = st.nextToken();
-                }
+                // failing to fork qsub is a matter of resources of the submit host
+                errorClass = ex instanceof IOException ? SubmitRetryPolicy.ErrorClass.OVERLOAD
+                        : SubmitRetryPolicy.ErrorClass.PERMANENT;
+            }
 
-                ProcessBuilder pb = new ProcessBuilder(command);
-                Map<String, String> env = pb.environment();
+            System.err.println(new Date() + ": Attempt " + attempt + ": ERROR While submitting job: " + err);
 
-                Properties props = gji.getEnvironmentProperties();
+            ret.append("Attempt ").append(attempt).append(": ").append(err).append("\n");
 
-                if (props != null) {
-                    for (String varName : props.stringPropertyNames()) {
-                        env.put(varName, props.getProperty(varName));
-                    }
+            long delay = attempts.failed(errorClass);
+            if (delay < 0) {
+                if (token != null) {
+                    submissionJournal.completed(token, null);
                 }
+                return "ERROR:" + ret;
+            }
+            retryClass = errorClass;
+            retryDelay = delay;
+            return null;
+        }
+        private final GridJobSubmitInfo gji;
+        private final List<String> extraQsubArgs;
+        private final boolean array;
+        private final SubmitRetryPolicy.Attempts attempts;
+        private final StringBuilder ret = new StringBuilder();
+        private String token;
+        private boolean maybeSubmitted;
+        private boolean started;
+        private int floor;
+        private SubmitRetryPolicy.ErrorClass retryClass;
+        private long retryDelay;
+    }
+
+    private List<String> buildQsubCommand(GridJobSubmitInfo gji, List<String> extraQsubArgs) throws Exception {
+        // Make the qsub command
+        List<String> command = new ArrayList<String>();
 
-                process = pb.start();
+        String username = gji.getUsername();
+        if (username == null) {
+            throw new Exception("Failed to get Username");
+        }
 
-                // Read process Id from the InputStream
-                byte[] buff = new byte[100];
-                byte[] errBuff = new byte[255];
-                process.getInputStream().read(buff);
-                process.getErrorStream().read(errBuff);
+        // Add sudo -u username if privilegeEscalation is set to true
+        if (gji.getPrivilegeEscalation()) {
+            command.add("sudo");
+            command.add("-E");
+            command.add("-u");
+            command.add(username);
+        }
 
-                err = new String(errBuff);
-                releaseProcess(process);
-                process = null;
+        String executableLocation = gji.getCommand();
 
+        if (executableLocation == null) {
+            throw new Exception("Failed to get Executable Location");
+        }
 
-                if (err.contains("can't connect to service") || err.contains("got read error")) {
-                    waitForQmasterAlive();
-                    needsContinue = true;
-                    continue;
-                }
+        List<GridJobArgument> arguments = gji.getArguments();
 
-                String response = new String(buff);
+        if (arguments == null || arguments.contains(null)) {
+            throw new Exception("Failed to get command line arguments");
+        }
 
-                for (String s : response.split("\n")) {
-                    if (s.startsWith("Your job")) {
-                        String sub = s.substring(offset);
-                        int spaceIndex = sub.indexOf(" ");
+        command.add("qsub");    // qsub command
+        command.addAll(extraQsubArgs);
 
-                        if (spaceIndex != -1) {
-                            String jobId = sub.substring(0, spaceIndex);
-                            return jobId;
-                        }
-                        break;
-                    }
+        if (gji.getSubmissionType() == GridJobSubmitInfo.SUBMISSION_ARRAY) {
+            addTokens(command, gji.getCommand());   // qsub arguments and executable
+            return command;
+        }
+
+        addTokens(command, gji.getNativeSpecification()); // qsub arguments
+        command.add("-o");                      // output stream path flag
+        command.add(gji.getOutputPath());       // output stream path
+        command.add("-e");                      // error stream path flag
+        command.add(gji.getErrorPath());        // error stream path
+
+        // Arguments of executable, one argument each even if it contains spaces
+        List<String> args = new ArrayList<String>(arguments.size());
+        for (GridJobArgument arg : arguments) {
+            String argValue = arg.getValue();
+            if (argValue != null) {
+                args.add(argValue);
+            }
+        }
+
+        Properties envProperties = gji.getEnvironmentProperties();
+        JobScriptStore store = jobScriptStore;
+
+        // the scripts are private to the plugin's user, qsub run as another
+        // user could not read them
+        if (store != null && !gji.getPrivilegeEscalation()) {
+            // the environment and command go into a shared job script
+            Map<String, String> environment = new HashMap<String, String>();
+            if (envProperties != null) {
+                for (String varName : envProperties.stringPropertyNames()) {
+                    environment.put(varName, envProperties.getProperty(varName));
                 }
+            }
+
+            command.add("-S");
+            command.add("/bin/sh");
+            command.add(store.materialize(environment, gji.getCommand(), args).getPath());
+            return command;
+        }
 
-                // we should NOT be here if the has been successfully submitted. 
-                if (err.trim().length() > 0) {
-                    err += "\n";
+        if (envProperties != null && !envProperties.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String varName : envProperties.stringPropertyNames()) {
+                if (sb.length() > 0) {
+                    sb.append(",");
                 }
+                sb.append(varName);
+                sb.append("=");
+                sb.append(envProperties.getProperty(varName));
+            }
 
-                err += "ERROR: " + response;
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                StringBuilder errorMsg = new StringBuilder("Unable to submit job. Internal error occurred\n");
+            command.add("-v");
+            command.add(sb.toString());
+        }
 
-                errorMsg.append("\n     Date: ").append(new Date().toString());
-                errorMsg.append("\n   Reason: ").append(ex.getMessage());
+        command.add(gji.getCommand());   // executable
+        command.addAll(args);
 
-                err = errorMsg.toString();
-            } finally {
-                if (process != null) {
-                    releaseProcess(process);
-                    process = null;
-                }
+        return command;
+    }
+
+    /**
+     * Steers the job towards the least loaded candidate queue, unless the
+     * job asks for a queue itself. The hint goes right behind the qsub
+     * arguments of the plugin.
+     */
+    private void addQueueHint(List<String> command, GridJobSubmitInfo gji, List<String> extraQsubArgs) {
+        QueueLoadMonitor monitor = queueLoadMonitor;
+        if (monitor == null || queueHintCandidates.isEmpty() || extraQsubArgs.contains("-q")) {
+            return;
+        }
+
+        List<String> qsubArgs = new ArrayList<String>();
+        addTokens(qsubArgs, gji.getSubmissionType() == GridJobSubmitInfo.SUBMISSION_ARRAY ? gji.getCommand()
+                : gji.getNativeSpecification());
+        if (qsubArgs.contains("-q")) {
+            return;
+        }
+
+        String queue = monitor.leastLoaded(queueHintCandidates);
+        if (queue == null) {
+            return;
+        }
+
+        int index = command.indexOf("qsub") + 1 + extraQsubArgs.size();
+        if (softQueueHint) {
+            command.addAll(index, Arrays.asList("-soft", "-q", queue, "-hard"));
+        } else {
+            command.addAll(index, Arrays.asList("-q", queue));
+        }
+    }
+
+    private static void addTokens(List<String> command, String s) {
+        if (s != null) {
+            StringTokenizer st = new StringTokenizer(s);
+            while (st.hasMoreTokens()) {
+                command.add(st.nextToken());
+            }
+        }
+    }
+
+    private Map<String, String> buildQsubEnvironment(GridJobSubmitInfo gji) {
+        Map<String, String> env = new HashMap<String, String>();
+
+        Properties props = gji.getEnvironmentProperties();
+
+        String url = bootstrapURL;
+        if (!url.equals(defaultBootstrapURL)) {
+            // route the submission to the endpoint we failed over to
+            env.put("SGE_ROOT", QmasterEndpoints.getRoot(url));
+            env.put("SGE_CELL", QmasterEndpoints.getCell(url));
+            if (QmasterEndpoints.getPort(url) != null) {
+                env.put("SGE_QMASTER_PORT", QmasterEndpoints.getPort(url));
             }
+        }
+
+        if (props != null) {
+            for (String varName : props.stringPropertyNames()) {
+                env.put(varName, props.getProperty(varName));
+            }
+        }
 
-            System.err.println(new Date() + ": Attempt " + i + ": ERROR While submitting job: " + err);
+        return env;
+    }
+
+    /**
+     * Passes the journal token of the submission to qsub as job context.
+     */
+    private static List<String> withSubmitToken(List<String> command, String token) {
+        List<String> ret = new ArrayList<String>(command);
+        int i = ret.indexOf("qsub");
+        ret.add(i + 1, "-ac");
+        ret.add(i + 2, SubmissionJournal.TOKEN_CONTEXT_VARIABLE + "=" + token);
+        return ret;
+    }
 
-            ret += "Attempt " + (i++) + ": " + err + "\n";
-            if (i < 6) {
-                needsContinue = true;
-                if (i > 2) {
-                    sleepTime *= 2; // multiple sleep time
+    /**
+     * @return the id of the job submitted with the journal token, null if
+     * there is none or qmaster could not be asked
+     */
+    private String findJobBySubmitToken(String token) {
+        try {
+            for (Job j : queryJobList()) {
+                if (j.isSetContext() && token.equals(j.getContext(SubmissionJournal.TOKEN_CONTEXT_VARIABLE))) {
+                    return String.valueOf(j.getJobNumber());
                 }
-                continue;
+            }
+        } catch (JGDIException ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Finds the jobs of the submissions which were in flight when the plugin
+     * went down last time, with one job list.
+     */
+    private void recoverSubmissions() {
+        if (submissionJournal == null || submissionJournal.getPendingIntents().isEmpty()) {
+            return;
+        }
+
+        try {
+            for (Integer jobId : submissionJournal.recover(queryJobList())) {
+                addOwnedJob(jobId);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Lets the job script store delete the script when the job finished.
+     */
+    private void scriptSubmitted(String jobId, List<String> command) {
+        JobScriptStore store = jobScriptStore;
+        if (store != null && !command.isEmpty()) {
+            store.submitted(jobId, command.get(command.size() - 1));
+        }
+    }
+
+    /**
+     * Runs qsub within the concurrency limit of the submission limiter.
+     */
+    private ProcessExecutor.Result runQsub(List<String> command, Map<String, String> env, boolean array)
+            throws IOException, InterruptedException {
+        ProcessExecutor.Result result = null;
+        submissionLimiter.acquire();
+        try {
+            result = processExecutor.execute(command, env, QSUB_TIMEOUT_MS);
+        } finally {
+            if (result == null) {
+                submissionLimiter.release(AdaptiveSubmissionLimiter.Outcome.IGNORED, 0);
+            } else if (result.isTimedOut() || isQmasterConnectError(result.getStderr())) {
+                submissionLimiter.release(AdaptiveSubmissionLimiter.Outcome.OVERLOAD, result.getElapsedMs());
+            } else if (parseJobId(result.getStdout(), array) != null) {
+                submissionLimiter.release(AdaptiveSubmissionLimiter.Outcome.SUCCESS, result.getElapsedMs());
             } else {
-                return "ERROR:" + ret;
+                submissionLimiter.release(AdaptiveSubmissionLimiter.Outcome.REJECTED, result.getElapsedMs());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the job id in the qsub output, null if there is none
+     */
+    private static String parseJobId(String response, boolean array) {
+        int offset = array ? 15 : 9; // "Your job-array " or "Your job "
+
+        for (String s : response.split("\n")) {
+            if (s.startsWith("Your job") && s.length() > offset) {
+                String sub = s.substring(offset);
+                int spaceIndex = sub.indexOf(" ");
+
+                if (spaceIndex != -1) {
+                    return sub.substring(0, spaceIndex);
+                }
+                break;
             }
-        } while (needsContinue);
+        }
+        return null;
+    }
 
-        return "ERROR:" + ret;
+    /**
+     * Queues the submission again after the delay, or earlier when qmaster is
+     * back, like {@link #waitBeforeRetry(SubmitRetryPolicy.ErrorClass, long)}.
+     */
+    private void retryLater(SubmitRetryPolicy.ErrorClass errorClass, long delay,
+            final FairShareSubmissionScheduler.Requeue requeue) {
+        if (errorClass == SubmitRetryPolicy.ErrorClass.TRANSIENT_CONNECTIVITY && !readiness.isReady()) {
+            readiness.whenReady(new Runnable() {
+                public void run() {
+                    requeue.after((long) (Math.random() * RESTORE_JITTER_MS));
+                }
+            });
+        }
+        requeue.after(delay);
+    }
+
+    private void waitBeforeRetry(SubmitRetryPolicy.ErrorClass errorClass, long delay) {
+        try {
+            if (errorClass == SubmitRetryPolicy.ErrorClass.TRANSIENT_CONNECTIVITY && !readiness.isReady()) {
+                // wake up when qmaster is back, spread over a while so the
+                // waiting submissions do not all retry at the same moment
+                if (readiness.awaitReady(delay, TimeUnit.MILLISECONDS)) {
+                    Thread.sleep((long) (Math.random() * RESTORE_JITTER_MS));
+                }
+            } else {
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException ex) {
+            // nothing to report
+        }
     }
 
     @Override
     public List<GridJobInfo> getJobList(String complexVariables) {
-        List<GridJobInfo> ret = new LinkedList<GridJobInfo>();
-
-        if (jgdi == null) {
-            System.err.println("JGDI is not properly initialized, returning NULL.");
-            return null;
+        if (daemonClient != null) {
+            return daemonClient.getJobList(complexVariables);
         }
+        List<GridJobInfo> ret = new LinkedList<GridJobInfo>();
 
         try {
-            List<Job> qJobs = jgdi.getJobList(); // Get current jobs from JGDI
+            List<Job> qJobs = queryJobList(); // Get current jobs from JGDI
+
             if (TEST_MODE) {
                 System.out.println("qJobs.size = " + qJobs.size());
             }
@@ -509,6 +1845,9 @@ public class JGDIPlugin extends PipelineGridPlugin {
 
             for (Job j : plJobs) {
 
+                // Pipeline recovers its jobs through this list after a restart
+                addOwnedJob(j.getJobNumber());
+
                 String jobId = String.valueOf(j.getJobNumber());
 
                 List<JobTask> taskList = j.getJaTasksList();
@@ -550,7 +1889,7 @@ public class JGDIPlugin extends PipelineGridPlugin {
                 }
             }
 
-        } catch (JGDIException ex) {
+        } catch (Exception ex) {
             ex.printStackTrace();
         }
 
@@ -573,7 +1912,7 @@ public class JGDIPlugin extends PipelineGridPlugin {
 
         try {
             if (j == null) {
-                j = jgdi.getJob(Integer.valueOf(jobIdOnly));
+                j = queryJob(Integer.valueOf(jobIdOnly));
                 if (j == null) {
                 	return getFinishedJobInfo(jobId);
                 }
@@ -620,13 +1959,6 @@ public class JGDIPlugin extends PipelineGridPlugin {
                     return fji;
                 }
             }
-        } catch (JGDIException ex) {
-            ex.printStackTrace();
-            if ( ex.getMessage().contains("unable to contact qmaster using port") ) {
-                isQmasterAlive = false;
-                System.err.println("Qmaster is unavailable. ");
-            }
-            
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -636,10 +1968,21 @@ public class JGDIPlugin extends PipelineGridPlugin {
 
     @Override
     public GridJobInfo getJobInfo(String jobId) {
-        return getJobInfo(jobId, null);
+        if (daemonClient != null) {
+            return daemonClient.getJobInfo(jobId);
+        }
+        addOwnedJob(jobId);
+        GridJobInfo info = getJobInfo(jobId, null);
+
+        if (info != null && jobId.indexOf('.') == -1 && (info.getState() == GridJobInfo.STATE_FINISHED
+                || info.getState() == GridJobInfo.STATE_ERRORED || info.getState() == GridJobInfo.STATE_NOT_FOUND)) {
+            // queried after it finished, no events will come for it
+            removeOwnedJob(jobId);
+        }
+        return info;
     }
 
-    private GridJobInfo getFinishedJobInfo(String jobId) throws PLGrid_InvalidMethodException {
+    GridJobInfo getFinishedJobInfo(String jobId) throws PLGrid_InvalidMethodException {
         GridJobInfo fji = null;
         if (finishedJobRetrievalMethod == null || finishedJobRetrievalMethod.trim().length() == 0) {
             fji = sgeAccountingThread.getFinishedJobInfo(jobId);
@@ -657,89 +2000,139 @@ public class JGDIPlugin extends PipelineGridPlugin {
 
     @Override
     public void killJob(String jobId, String username, boolean force) {
-        if (username != null) {
+        if (daemonClient != null) {
+            daemonClient.killJob(jobId, username, force);
+            return;
+        }
+        Map<String, KillJobResult> results = killJobs(Collections.singletonList(jobId), username, force);
 
-            StringBuilder cmd = new StringBuilder();
+        KillJobResult r = results.get(jobId);
+        if (r != null && r.getStatus() == KillJobResult.Status.FAILED) {
+            StringBuilder errorMsg = new StringBuilder("Unable to delete job ");
 
-            cmd.append("sudo -u ");
-            cmd.append(username);
-            cmd.append(" ");
+            errorMsg.append(jobId);
+            errorMsg.append("\n     Date: ").append(new Date().toString());
+            errorMsg.append("\n   Reason: ").append(r.getMessage());
+
+            System.err.println(errorMsg);
+        }
+    }
 
-            cmd.append("qdel ");    // qdel command
+    /**
+     * Deletes many jobs of one user at once, see
+     * {@link #killJobs(java.util.Map, boolean)}.
+     */
+    public Map<String, KillJobResult> killJobs(Collection<String> jobIds, String username, boolean force) {
+        Map<String, String> jobIdToUser = new LinkedHashMap<String, String>();
+        for (String jobId : jobIds) {
+            jobIdToUser.put(jobId, username);
+        }
+        return killJobs(jobIdToUser, force);
+    }
 
-            if (force) {
-                cmd.append("-f ");
+    /**
+     * Deletes many jobs at once. The jobs are grouped by user: the jobs of a
+     * user are deleted with one sudo qdel command, the jobs without a user with
+     * one JGDI request.
+     *
+     * @param jobIdToUser job or task ids mapped to the user to delete them as,
+     * null to delete them over JGDI
+     * @return the result for every id
+     */
+    public Map<String, KillJobResult> killJobs(Map<String, String> jobIdToUser, boolean force) {
+        Map<String, List<String>> jobIdsByUser = new LinkedHashMap<String, List<String>>();
+
+        for (Map.Entry<String, String> e : jobIdToUser.entrySet()) {
+            List<String> ids = jobIdsByUser.get(e.getValue());
+            if (ids == null) {
+                ids = new ArrayList<String>();
+                jobIdsByUser.put(e.getValue(), ids);
             }
+            ids.add(e.getKey());
+        }
 
-            cmd.append(jobId);
+        Map<String, KillJobResult> results = new LinkedHashMap<String, KillJobResult>();
 
-            Process process = null;
+        for (Map.Entry<String, List<String>> e : jobIdsByUser.entrySet()) {
+            List<String> ids = e.getValue();
+            if (e.getKey() != null) {
+                for (int i = 0; i < ids.size(); i += QDEL_MAX_JOBS) {
+                    results.putAll(qdel(ids.subList(i, Math.min(ids.size(), i + QDEL_MAX_JOBS)), e.getKey(), force));
+                }
+            } else {
+                results.putAll(deleteJobs(ids, force));
+            }
+        }
 
-            try {
-                process = Runtime.getRuntime().exec(cmd.toString());
-                process.waitFor();
-            } catch (Exception ex) {
-                ex.printStackTrace();
-                StringBuilder errorMsg = new StringBuilder("Unable to delete job ");
+        return results;
+    }
 
-                errorMsg.append(jobId);
-                errorMsg.append("\n     Date: ").append(new Date().toString());
-                errorMsg.append("\n   Reason: ").append(ex.getMessage());
+    private Map<String, KillJobResult> qdel(List<String> jobIds, String username, boolean force) {
+        List<String> command = new ArrayList<String>();
+        command.add("sudo");
+        command.add("-u");
+        command.add(username);
+        command.add("qdel");    // qdel command
+        if (force) {
+            command.add("-f");
+        }
+        command.addAll(jobIds);
 
-                System.err.println(errorMsg);
+        try {
+            ProcessExecutor.Result result = processExecutor.execute(command, null, QDEL_TIMEOUT_MS);
 
-            } finally {
-                if (process != null) {
-                    releaseProcess(process);
-                    process = null;
-                }
-            }
-        } else {
-            try {
-                if (jobId.contains(".")) {
-                    List<JGDIAnswer> answers = new LinkedList<JGDIAnswer>();
-                    String[] tasks = new String[]{jobId};
-                    jgdi.deleteJobsWithAnswer(tasks, force, null, answers);
-                } else {
-                    jgdi.deleteJob(Integer.valueOf(jobId));
-                }
-            } catch (Exception ex) {
-                if (!ex.getMessage().contains("does not exist")) {
-                    ex.printStackTrace();
-                }
+            List<String> output = new ArrayList<String>();
+            output.addAll(Arrays.asList(result.getStdout().split("\n")));
+            output.addAll(Arrays.asList(result.getStderr().split("\n")));
+
+            if (result.isTimedOut()) {
+                return KillJobResult.parse(jobIds, output, KillJobResult.Status.FAILED,
+                        "qdel did not finish within " + QDEL_TIMEOUT_MS / 1000 + " seconds");
             }
+            return KillJobResult.parse(jobIds, output,
+                    result.getExitCode() == 0 ? KillJobResult.Status.DELETED : KillJobResult.Status.UNKNOWN,
+                    "qdel exited with " + result.getExitCode());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return KillJobResult.parse(jobIds, new ArrayList<String>(), KillJobResult.Status.FAILED, ex.getMessage());
         }
     }
 
-    private void releaseProcess(Process p) {
-        Exception ex = null;
+    private Map<String, KillJobResult> deleteJobs(List<String> jobIds, boolean force) {
+        List<JGDIAnswer> answers = new LinkedList<JGDIAnswer>();
+        JGDISessionPool pool = sessionPool;
+        JGDISessionPool.PooledSession session = null;
+        boolean failed = false;
 
-        if (p != null) {
-            try {
-                p.getInputStream().close();
-            } catch (Exception iex) {
-                ex = iex;
-            }
-            try {
-                p.getOutputStream().close();
-            } catch (Exception oex) {
-                ex = oex;
-            }
-            try {
-                p.getErrorStream().close();
-            } catch (Exception eex) {
-                ex = eex;
+        try {
+            session = pool.borrow();
+            session.getJGDI().deleteJobsWithAnswer(jobIds.toArray(new String[jobIds.size()]), force, null, answers);
+        } catch (JGDIException ex) {
+            failed = qmasterRequestFailed(ex);
+            if (ex.getMessage() == null || !ex.getMessage().contains("does not exist")) {
+                ex.printStackTrace();
             }
-            try {
-                p.destroy();
-            } catch (Exception dex) {
-                ex = dex;
+            List<String> messages = answerTexts(answers);
+            messages.add(ex.getMessage());
+            return KillJobResult.parse(jobIds, messages, KillJobResult.Status.FAILED, ex.getMessage());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return KillJobResult.parse(jobIds, answerTexts(answers), KillJobResult.Status.FAILED, ex.getMessage());
+        } finally {
+            if (session != null) {
+                pool.release(session, failed);
             }
         }
 
-        if (ex != null) {
-            ex.printStackTrace();
+        return KillJobResult.parse(jobIds, answerTexts(answers), KillJobResult.Status.UNKNOWN, null);
+    }
+
+    private static List<String> answerTexts(List<JGDIAnswer> answers) {
+        List<String> texts = new ArrayList<String>(answers.size());
+        for (JGDIAnswer a : answers) {
+            texts.add(a.getText());
         }
+        return texts;
     }
 
     public static void main(String[] args) {
@@ -768,18 +2161,93 @@ public class JGDIPlugin extends PipelineGridPlugin {
     private final String SGE_CELL;
     private final String SGE_PORT;
     private SGEAccountingThread sgeAccountingThread;
-    private String finishedJobRetrievalMethod;
+    private volatile String finishedJobRetrievalMethod;
     private ARCODatabase arcoDatabase;
     public static final String JGDI_PLUGIN_VERSION = "3.0.2";
-    private static final int PING_QMASTER_INTERVAL_MS = 15000;
-    private String bootstrapURL;
+    private static final int EVENT_PIPELINE_PARTITIONS = 4;
+    private static final int EVENT_PIPELINE_CAPACITY = 4096;
+    private static final int EVENT_PIPELINE_MAX_OVERFLOW = 65536;
+    private static final long COALESCE_WINDOW_MS = 500;
+    private final GridEventPipeline eventPipeline;
+    private final JobTaskStateCoalescer taskStateCoalescer;
+    private final QmasterReconnectReconciler reconciler;
+    private static final int EVENT_OUTBOX_CAPACITY = 8 * 1024 * 1024;
+    private GridEventOutbox eventOutbox;
+    private final LongHashSet ownedJobs = new LongHashSet(1024);
+    private volatile boolean filterEventsByOwnedJobs;
+    private volatile int maxOwnedJobId;
+    private static final int MAX_OWNED_JOBS = 200000;
+    // floors of the submissions in flight, with their number of submissions
+    private final Map<Integer, Integer> submissionFloors = new HashMap<Integer, Integer>();
+    private static final int NO_SUBMISSION_FLOOR = -1;
+    private volatile int lowestSubmissionFloor = NO_SUBMISSION_FLOOR;
+    // SGE's default, job numbers go from 1 to it and start over
+    private static final int MAX_SEQNUM = 9999999;
+    private final JGDIEventDispatcher.JobFilter ownedJobFilter = new JGDIEventDispatcher.JobFilter() {
+        public boolean accept(int jobId) {
+            if (isOwnedJob(jobId)) {
+                return true;
+            }
+            // The first events of a new job can arrive before qsub returned its
+            // number. Job numbers are increasing, so while submissions are in
+            // flight, accept the jobs newer than the newest owned job when the
+            // oldest of them started. Concurrent submissions can return their
+            // numbers in any order, so the floor is not raised by them.
+            int floor = lowestSubmissionFloor;
+            return floor != NO_SUBMISSION_FLOOR && (floor == 0 || isNewerJob(jobId, floor));
+        }
+    };
+    private boolean replayedOutbox;
+    private volatile String bootstrapURL;
+    private final String defaultBootstrapURL;
+    private final QmasterEndpoints endpoints;
+    private volatile boolean qmasterMoved;
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+    private static final int QDEL_MAX_JOBS = 500;
+    private static final long QSUB_TIMEOUT_MS = 60000;
+    private static final long QDEL_TIMEOUT_MS = 60000;
+    private static final int PROCESS_OUTPUT_LIMIT = 64 * 1024;
+    private static final int MAX_CONCURRENT_PROCESSES = 128;
+    private final ProcessExecutor processExecutor = new ProcessExecutor(PROCESS_OUTPUT_LIMIT, MAX_CONCURRENT_PROCESSES);
+    private static final int INITIAL_CONCURRENT_SUBMISSIONS = 4;
+    private static final int MAX_CONCURRENT_SUBMISSIONS = 64;
+    private static final long SUBMIT_RETRY_DEADLINE_MS = 10 * 60 * 1000;
+    private static final long RESTORE_JITTER_MS = 2000;
+    private SubmissionJournal submissionJournal;
+    private static final long JOB_STATE_SNAPSHOT_INTERVAL_MS = 10000;
+    private JobStateSnapshot jobStateSnapshot;
+    private volatile boolean warmRestartReconcilePending;
+    private static final int STARTUP_THREADS = 4;
+    private final StartupReport startupReport = new StartupReport();
+    private final JobStateWaiters jobStateWaiters;
+    private volatile JobScriptStore jobScriptStore;
+    private final JobGraphDependents graphDependents = new JobGraphDependents();
+    private static final long QUEUE_LOAD_REFRESH_MS = 30000;
+    private volatile QueueLoadMonitor queueLoadMonitor;
+    private volatile List<String> queueHintCandidates = Collections.emptyList();
+    private volatile boolean softQueueHint;
+    private static final int FAIR_SHARE_WORKERS = 16;
+    private static final int FAIR_SHARE_VIRTUAL_WORKERS = 1024;
+    private volatile boolean useVirtualThreads;
+    private volatile ExecutorService blockingExecutor = BlockingExecutors.newExecutor("JGDIPluginBlocking", false);
+    private volatile FairShareSubmissionScheduler fairShareScheduler;
+    private final SubmitRetryPolicy submitRetryPolicy = new SubmitRetryPolicy(SUBMIT_RETRY_DEADLINE_MS);
+    private final AdaptiveSubmissionLimiter submissionLimiter = new AdaptiveSubmissionLimiter(
+            INITIAL_CONCURRENT_SUBMISSIONS, MAX_CONCURRENT_SUBMISSIONS);
     private JGDI jgdi = null;
     private JGDIJobFinishListener jobFinishListener;
     private JGDIJobModListener jobModListener;
     private JGDIQmasterDownListener qmasterDownListener;
-    private EventClient modEventClient;
-    private EventClient finishEventClient;
-    private EventClient downEventClient;
-    private boolean isQmasterAlive = true;
-    private Timer heartBeatTimer;
+    private JGDIEventDispatcher eventDispatcher;
+    private EventClient eventClient;
+    private volatile boolean isQmasterAlive = true;
+    private volatile QmasterHeartbeat heartbeat;
+    private static final double PHI_SUSPECT_THRESHOLD = 8;
+    private final QmasterFailureDetector failureDetector;
+    private final Object qmasterLock = new Object();
+    private final QmasterReadiness readiness = new QmasterReadiness();
+    private static final int DEFAULT_SESSION_POOL_SIZE = 4;
+    private static final long SESSION_MAX_IDLE_MS = 5 * 60 * 1000;
+    private volatile JGDISessionPool sessionPool;
+    private JGDIDaemonClient daemonClient;
 }
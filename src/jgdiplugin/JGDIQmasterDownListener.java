@@ -41,7 +41,7 @@ public class JGDIQmasterDownListener implements EventListener {
 
     public void eventOccured(Event evt) {
         if (evt instanceof QmasterGoesDownEvent) {
-            plugin.pingQmaster();
+            plugin.requestQmasterProbe();
         }
     }
 }
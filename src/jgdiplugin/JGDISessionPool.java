@@ -0,0 +1,327 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import com.sun.grid.jgdi.JGDI;
+import com.sun.grid.jgdi.JGDIException;
+import com.sun.grid.jgdi.JGDIFactory;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of JGDI sessions for read queries, so independent queries of different
+ * workflows do not serialize on one qmaster session. Sessions are opened on
+ * demand, a borrowed session is used by one thread only.
+ *
+ * The heartbeat keeps the pool healthy: when qmaster goes down all sessions
+ * are invalidated, while qmaster is up sessions idle for too long are closed.
+ * While the failure detector reports qmaster unavailable, borrowing fails
+ * right away instead of bootstrapping a session for every query.
+ */
+public class JGDISessionPool {
+
+    public JGDISessionPool(String bootstrapURL, int maxSessions) {
+        this.bootstrapURL = bootstrapURL;
+        this.maxSessions = maxSessions;
+        semaphore = new Semaphore(maxSessions, true);
+        availableSessions = new LinkedList<PooledSession>();
+        allSessions = new CopyOnWriteArraySet<PooledSession>();
+    }
+
+    /**
+     * Borrows a session, waits up to the borrow timeout while all sessions
+     * are in use. The session must be given back with
+     * {@link #release(PooledSession, boolean)}.
+     *
+     * @throws JGDIException if qmaster is unavailable, no session was free in
+     * time or the thread was interrupted
+     */
+    public PooledSession borrow() throws JGDIException {
+        return borrow(true);
+    }
+
+    private PooledSession borrow(boolean checkAvailable) throws JGDIException {
+        QmasterFailureDetector detector = failureDetector;
+        if (checkAvailable && detector != null && !detector.isAvailable()) {
+            throw new JGDIException("Qmaster is unavailable");
+        }
+
+        try {
+            if (!semaphore.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new JGDIException("No JGDI session became free within " + borrowTimeoutMs + " ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JGDIException("Interrupted while waiting for a JGDI session");
+        }
+
+        PooledSession session = null;
+        String url;
+        int gen;
+
+        synchronized (this) {
+            if (!availableSessions.isEmpty()) {
+                session = availableSessions.removeFirst();
+            }
+            url = bootstrapURL;
+            gen = generation;
+        }
+
+        if (session == null) {
+            try {
+                session = new PooledSession(JGDIFactory.newInstance(url), gen);
+                allSessions.add(session);
+            } catch (JGDIException ex) {
+                semaphore.release();
+                throw ex;
+            } catch (RuntimeException ex) {
+                semaphore.release();
+                throw ex;
+            }
+        }
+
+        session.borrowed();
+        return session;
+    }
+
+    /**
+     * Gives a borrowed session back.
+     *
+     * @param failed true if the session failed with a connection error, it is
+     * closed then
+     */
+    public void release(PooledSession session, boolean failed) {
+        if (!allSessions.contains(session)) {
+            throw new IllegalArgumentException("You must release the session given to you");
+        }
+
+        session.released(failed);
+
+        boolean keep;
+        synchronized (this) {
+            keep = !failed && !shutdown && session.generation == generation && availableSessions.size() < maxSessions;
+            if (keep) {
+                availableSessions.addFirst(session);
+            }
+        }
+
+        if (!keep) {
+            close(session);
+        }
+
+        semaphore.release();
+    }
+
+    /**
+     * Closes all idle sessions. Sessions which are borrowed at the moment are
+     * closed when they are given back. Called when qmaster went down.
+     */
+    public void invalidateAll() {
+        List<PooledSession> idle;
+
+        synchronized (this) {
+            generation++;
+            idle = new LinkedList<PooledSession>(availableSessions);
+            availableSessions.clear();
+        }
+
+        for (PooledSession s : idle) {
+            close(s);
+        }
+    }
+
+    /**
+     * Closes the sessions which have been idle for longer than the given time.
+     * Called by the heartbeat while qmaster is up.
+     */
+    public void evictIdle(long maxIdleMs) {
+        List<PooledSession> evicted = new LinkedList<PooledSession>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            for (PooledSession s : availableSessions) {
+                if (now - s.getLastReleaseTime() > maxIdleMs) {
+                    evicted.add(s);
+                }
+            }
+            availableSessions.removeAll(evicted);
+        }
+
+        for (PooledSession s : evicted) {
+            close(s);
+        }
+    }
+
+    /**
+     * Opens sessions up to the given count ahead of demand, e.g. after a
+     * failover, so the first queries do not pay for the bootstrap.
+     */
+    public void prestart(int count) {
+        List<PooledSession> opened = new LinkedList<PooledSession>();
+        try {
+            for (int i = 0; i < Math.min(count, maxSessions); i++) {
+                // runs while qmaster is being restored, before it is marked available
+                opened.add(borrow(false));
+            }
+        } catch (Exception ex) {
+            // the sessions are opened on demand then
+        } finally {
+            for (PooledSession s : opened) {
+                release(s, false);
+            }
+        }
+    }
+
+    public synchronized void setBootstrapURL(String bootstrapURL) {
+        this.bootstrapURL = bootstrapURL;
+    }
+
+    /**
+     * Sets the detector whose state makes borrowing fail fast.
+     */
+    public void setFailureDetector(QmasterFailureDetector failureDetector) {
+        this.failureDetector = failureDetector;
+    }
+
+    public void setBorrowTimeout(long borrowTimeoutMs) {
+        this.borrowTimeoutMs = borrowTimeoutMs;
+    }
+
+    public long getBorrowTimeout() {
+        return borrowTimeoutMs;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * @return all open sessions, for their metrics
+     */
+    public List<PooledSession> getSessions() {
+        return new LinkedList<PooledSession>(allSessions);
+    }
+
+    public int getBusySessionCount() {
+        return maxSessions - semaphore.availablePermits();
+    }
+
+    /**
+     * Closes the idle sessions, and the borrowed ones when they are given
+     * back.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+        }
+        invalidateAll();
+    }
+
+    private void close(PooledSession s) {
+        allSessions.remove(s);
+        try {
+            s.jgdi.close();
+        } catch (Exception ex) {
+            // the session is discarded anyway
+        }
+    }
+
+    /**
+     * A pooled JGDI session and its usage metrics.
+     */
+    public static class PooledSession {
+
+        private final JGDI jgdi;
+        private final int generation;
+        private final long creationTime;
+        private long borrowTime;
+        private long lastReleaseTime;
+        private long borrowCount;
+        private long errorCount;
+        private long busyTimeMs;
+
+        private PooledSession(JGDI jgdi, int generation) {
+            this.jgdi = jgdi;
+            this.generation = generation;
+            this.creationTime = System.currentTimeMillis();
+        }
+
+        public JGDI getJGDI() {
+            return jgdi;
+        }
+
+        public synchronized long getBorrowCount() {
+            return borrowCount;
+        }
+
+        public synchronized long getErrorCount() {
+            return errorCount;
+        }
+
+        public synchronized long getBusyTimeMs() {
+            return busyTimeMs;
+        }
+
+        public synchronized long getLastReleaseTime() {
+            return lastReleaseTime;
+        }
+
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        private synchronized void borrowed() {
+            borrowTime = System.currentTimeMillis();
+            borrowCount++;
+        }
+
+        private synchronized void released(boolean failed) {
+            lastReleaseTime = System.currentTimeMillis();
+            busyTimeMs += lastReleaseTime - borrowTime;
+            if (failed) {
+                errorCount++;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "JGDI session (borrowed " + borrowCount + " times, " + errorCount + " errors, busy "
+                    + busyTimeMs + " ms)";
+        }
+    }
+    private final Semaphore semaphore;
+    private final LinkedList<PooledSession> availableSessions;
+    private final Set<PooledSession> allSessions;
+    private final int maxSessions;
+    private String bootstrapURL;
+    private int generation;
+    private boolean shutdown;
+    private volatile QmasterFailureDetector failureDetector;
+    private volatile long borrowTimeoutMs = DEFAULT_BORROW_TIMEOUT_MS;
+    private static final long DEFAULT_BORROW_TIMEOUT_MS = 30000;
+}
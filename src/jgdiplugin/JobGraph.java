@@ -0,0 +1,125 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import plgrid.GridJobSubmitInfo;
+
+/**
+ * A small graph of jobs to submit at once, see
+ * {@link JGDIPlugin#submitJobGraph(JobGraph)}. A job is held by SGE until all
+ * jobs it depends on have finished.
+ */
+public class JobGraph {
+
+    /**
+     * Adds a job to the graph.
+     *
+     * @return the index of the job in the graph
+     */
+    public int add(GridJobSubmitInfo gji) {
+        jobs.add(gji);
+        dependencies.add(new ArrayList<Integer>());
+        return jobs.size() - 1;
+    }
+
+    /**
+     * Holds the job until the other job has finished.
+     */
+    public void addDependency(int job, int dependsOn) {
+        if (job < 0 || job >= jobs.size() || dependsOn < 0 || dependsOn >= jobs.size()) {
+            throw new IndexOutOfBoundsException("No such job in the graph");
+        }
+        if (job == dependsOn) {
+            throw new IllegalArgumentException("A job can not depend on itself");
+        }
+        if (!dependencies.get(job).contains(dependsOn)) {
+            dependencies.get(job).add(dependsOn);
+        }
+    }
+
+    public int size() {
+        return jobs.size();
+    }
+
+    public GridJobSubmitInfo get(int job) {
+        return jobs.get(job);
+    }
+
+    /**
+     * @return the indices of the jobs the job depends on
+     */
+    public List<Integer> getDependencies(int job) {
+        return new ArrayList<Integer>(dependencies.get(job));
+    }
+
+    /**
+     * @return the jobs ordered so that every job comes after the jobs it
+     * depends on
+     * @throws IllegalArgumentException if the dependencies have a cycle
+     */
+    public int[] topologicalOrder() {
+        int n = jobs.size();
+        int[] missing = new int[n];
+        List<List<Integer>> dependents = new ArrayList<List<Integer>>(n);
+
+        for (int i = 0; i < n; i++) {
+            dependents.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < n; i++) {
+            missing[i] = dependencies.get(i).size();
+            for (int d : dependencies.get(i)) {
+                dependents.get(d).add(i);
+            }
+        }
+
+        LinkedList<Integer> ready = new LinkedList<Integer>();
+        for (int i = 0; i < n; i++) {
+            if (missing[i] == 0) {
+                ready.add(i);
+            }
+        }
+
+        int[] order = new int[n];
+        int k = 0;
+        while (!ready.isEmpty()) {
+            int job = ready.removeFirst();
+            order[k++] = job;
+            for (int d : dependents.get(job)) {
+                if (--missing[d] == 0) {
+                    ready.add(d);
+                }
+            }
+        }
+
+        if (k < n) {
+            throw new IllegalArgumentException("The job dependencies have a cycle");
+        }
+        return order;
+    }
+    private final List<GridJobSubmitInfo> jobs = new ArrayList<GridJobSubmitInfo>();
+    private final List<List<Integer>> dependencies = new ArrayList<List<Integer>>();
+}
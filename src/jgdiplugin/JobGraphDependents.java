@@ -0,0 +1,211 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import plgrid.event.EventFinished;
+
+/**
+ * Tracks the jobs held with -hold_jid by {@link JGDIPlugin#submitJobGraph}.
+ * SGE releases a held job when the jobs it waits for are gone, whether they
+ * succeeded or not. So when a job of a graph fails, is deleted or errors out,
+ * the jobs depending on it, directly or through other jobs, are deleted
+ * instead of running on missing input.
+ *
+ * A parent is announced with {@link #expect(String)} before its dependent is
+ * submitted, so a parent which fails while qsub runs is not missed; the
+ * dependent is deleted as soon as its id is registered then. A job whose
+ * final usage was missing has an unknown exit status, leaving qmaster is no
+ * failure for it.
+ */
+class JobGraphDependents {
+
+    /**
+     * A dependent of the parent is about to be submitted. Must be followed
+     * by {@link #register(String, String, String)} or {@link #cancel(String)}.
+     *
+     * @param parentId the id of the parent, of an array job with its range
+     */
+    public synchronized void expect(String parentId) {
+        int dot = parentId.indexOf('.');
+        String parent = dot == -1 ? parentId : parentId.substring(0, dot);
+
+        Parent p = parents.get(parent);
+        if (p == null) {
+            p = new Parent(dot != -1);
+            parents.put(parent, p);
+        }
+        p.pending++;
+    }
+
+    /**
+     * Remembers that the dependent job is held until the parent finished.
+     *
+     * @param parentId the id of the parent, of an array job with its range
+     * @param username the user to delete the dependent as, null for JGDI
+     * @return true if the parent failed already, the dependent must be
+     * deleted
+     */
+    public synchronized boolean register(String parentId, String dependentId, String username) {
+        String parent = jobNumber(parentId);
+
+        Parent p = parents.get(parent);
+        if (p == null) {
+            p = new Parent(parentId.indexOf('.') != -1);
+            parents.put(parent, p);
+        } else if (p.pending > 0) {
+            p.pending--;
+        }
+
+        if (p.failed) {
+            // deleting the dependent fails its own dependents in turn
+            removeIfDone(parent, p);
+            return true;
+        }
+        if (p.succeeded) {
+            removeIfDone(parent, p);
+            return false;
+        }
+        p.dependents.put(dependentId, username);
+        return false;
+    }
+
+    /**
+     * The dependent announced with {@link #expect(String)} was not
+     * submitted.
+     */
+    public synchronized void cancel(String parentId) {
+        String parent = jobNumber(parentId);
+        Parent p = parents.get(parent);
+        if (p != null && p.pending > 0) {
+            p.pending--;
+            removeIfDone(parent, p);
+        }
+    }
+
+    /**
+     * The final usage of the job was missing, its exit status is unknown.
+     */
+    public synchronized void usageUnknown(String jobId) {
+        Parent p = parents.get(jobId);
+        if (p != null) {
+            p.usageUnknown = true;
+        }
+    }
+
+    /**
+     * Updates the parents with a finished job or task.
+     *
+     * @return the dependent jobs to delete, mapped to their user; empty if
+     * the parent succeeded or is none
+     */
+    public synchronized Map<String, String> finished(EventFinished evt) {
+        Map<String, String> toDelete = new LinkedHashMap<String, String>();
+        if (parents.isEmpty()) {
+            return toDelete;
+        }
+
+        String jobId = evt.getJobId();
+        Parent p = parents.get(jobId);
+        if (p == null || p.failed || p.succeeded) {
+            return toDelete;
+        }
+
+        // task "0" is the whole job leaving qmaster, with exit status -88;
+        // after a task finished normally or without usage it is no failure
+        boolean wholeJob = "0".equals(evt.getTaskId());
+
+        if (evt.getExitStatus() != 0 && !(wholeJob && (p.finishSeen || p.usageUnknown))) {
+            collectDependents(jobId, toDelete);
+        } else if (wholeJob || !p.array) {
+            p.succeeded = true;
+            removeIfDone(jobId, p);
+        } else {
+            p.finishSeen = true;
+        }
+        return toDelete;
+    }
+
+    public synchronized int size() {
+        return parents.size();
+    }
+
+    /**
+     * Marks the parent and all jobs depending on it as failed, and collects
+     * these jobs. A failed parent is kept while dependents of it are being
+     * submitted.
+     */
+    private void collectDependents(String jobId, Map<String, String> toDelete) {
+        LinkedList<String> failed = new LinkedList<String>();
+        failed.add(jobId);
+
+        while (!failed.isEmpty()) {
+            String id = failed.removeFirst();
+            Parent p = parents.get(id);
+            if (p == null) {
+                continue;
+            }
+            p.failed = true;
+            for (Map.Entry<String, String> e : p.dependents.entrySet()) {
+                if (!toDelete.containsKey(e.getKey())) {
+                    toDelete.put(e.getKey(), e.getValue());
+                    failed.add(jobNumber(e.getKey()));
+                }
+            }
+            p.dependents.clear();
+            removeIfDone(id, p);
+        }
+    }
+
+    private void removeIfDone(String jobId, Parent p) {
+        if (p.pending == 0 && (p.failed || p.succeeded)) {
+            parents.remove(jobId);
+        }
+    }
+
+    private static String jobNumber(String jobId) {
+        int dot = jobId.indexOf('.');
+        return dot == -1 ? jobId : jobId.substring(0, dot);
+    }
+
+    private static class Parent {
+
+        Parent(boolean array) {
+            this.array = array;
+        }
+        private final boolean array;
+        private boolean finishSeen;
+        private boolean usageUnknown;
+        private boolean failed;
+        private boolean succeeded;
+        // dependents announced but not registered yet
+        private int pending;
+        private final Map<String, String> dependents = new LinkedHashMap<String, String>();
+    }
+    // job number -> the parent and its dependents
+    private final Map<String, Parent> parents = new HashMap<String, Parent>();
+}
@@ -0,0 +1,307 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes job scripts named by the hash of their content. A script exports
+ * the environment of the job and runs its command, so qsub gets the script
+ * path instead of the whole environment and argument list. Jobs with the same
+ * environment and command share one script, which is written only once.
+ *
+ * qsub spools the script with the job, so a script is only kept to be reused:
+ * it is deleted when the last job submitted with it finished, and scripts not
+ * used for a day, of earlier runs too, are swept from the directory by a
+ * timer.
+ *
+ * The scripts contain the environment of the jobs, so the directory and the
+ * scripts are only accessible by the user of the plugin.
+ */
+public class JobScriptStore {
+
+    public JobScriptStore(File directory) {
+        this.directory = directory;
+
+        timer = new Timer("JobScriptStore", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, 0, SWEEP_INTERVAL_MS);
+    }
+
+    public void shutdown() {
+        timer.cancel();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the script which exports the environment and runs the command
+     * with its arguments
+     */
+    public File materialize(Map<String, String> environment, String command, List<String> arguments)
+            throws IOException {
+        StringBuilder sb = new StringBuilder("#!/bin/sh\n");
+
+        if (environment != null) {
+            for (Map.Entry<String, String> e : new TreeMap<String, String>(environment).entrySet()) {
+                if (!e.getKey().matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                    continue; // can not be exported by the shell
+                }
+                sb.append("export ").append(e.getKey()).append('=').append(quote(e.getValue())).append('\n');
+            }
+        }
+
+        sb.append("exec ").append(quote(command));
+        for (String arg : arguments) {
+            sb.append(' ').append(quote(arg));
+        }
+        sb.append('\n');
+
+        byte[] content = sb.toString().getBytes(UTF8);
+        String hash = hash(content);
+        File script = new File(directory, hash + ".sh");
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (knownScripts.put(hash, now) != null && script.exists()) {
+                reused.incrementAndGet();
+                return script;
+            }
+        }
+
+        if (!script.exists()) {
+            if (!directoryPrivate) {
+                makeDirectoryPrivate();
+            }
+
+            // written under a temporary name, so qsub never reads a partial script
+            File tmp = Files.createTempFile(directory.toPath(), hash, ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"))).toFile();
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                fos.write(content);
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(script) && !script.exists()) {
+                tmp.delete();
+                throw new IOException("Failed to write job script " + script);
+            }
+            tmp.delete();
+            written.incrementAndGet();
+        } else {
+            reused.incrementAndGet();
+        }
+
+        return script;
+    }
+
+    /**
+     * Creates the directory or takes the access of other users away from an
+     * existing one, which may hold scripts of earlier runs.
+     */
+    private synchronized void makeDirectoryPrivate() throws IOException {
+        if (directory.isDirectory()) {
+            Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwx------"));
+        } else {
+            Files.createDirectories(directory.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        }
+        directoryPrivate = true;
+    }
+
+    /**
+     * Remembers the script a job was submitted with, to delete it when the
+     * job finished.
+     *
+     * @param path the script argument of qsub, ignored if it is no script of
+     * this store
+     */
+    public synchronized void submitted(String jobId, String path) {
+        File script = new File(path);
+        String name = script.getName();
+        if (!directory.equals(script.getParentFile()) || !name.endsWith(".sh")) {
+            return;
+        }
+
+        String hash = name.substring(0, name.length() - 3);
+        if (scriptsByJob.put(jobId, hash) == null) {
+            Integer users = scriptUsers.get(hash);
+            scriptUsers.put(hash, users == null ? 1 : users + 1);
+        }
+    }
+
+    /**
+     * Deletes the script of the job if no other job uses it and it was not
+     * handed out recently, a submission may be about to use it.
+     */
+    public void finished(String jobId) {
+        File script;
+        synchronized (this) {
+            String hash = scriptsByJob.remove(jobId);
+            if (hash == null) {
+                return;
+            }
+
+            Integer users = scriptUsers.get(hash);
+            if (users != null && users > 1) {
+                scriptUsers.put(hash, users - 1);
+                return;
+            }
+            scriptUsers.remove(hash);
+
+            Long lastUse = knownScripts.get(hash);
+            if (lastUse != null && System.currentTimeMillis() - lastUse < REUSE_GRACE_MS) {
+                return; // left to the sweep
+            }
+            knownScripts.remove(hash);
+            script = new File(directory, hash + ".sh");
+        }
+
+        if (script.delete()) {
+            deleted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deletes the scripts without a running job which were not used for
+     * {@link #MAX_SCRIPT_AGE_MS}, and temporary files left by a crash.
+     */
+    private void sweep(long now) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        int count = 0;
+        for (File f : files) {
+            String name = f.getName();
+            boolean stale;
+
+            if (name.endsWith(".sh")) {
+                String hash = name.substring(0, name.length() - 3);
+                synchronized (this) {
+                    Long lastUse = knownScripts.get(hash);
+                    stale = !scriptUsers.containsKey(hash)
+                            && now - (lastUse != null ? lastUse : f.lastModified()) > MAX_SCRIPT_AGE_MS;
+                    if (stale) {
+                        knownScripts.remove(hash);
+                    }
+                }
+            } else {
+                stale = name.endsWith(".tmp") && now - f.lastModified() > MAX_SCRIPT_AGE_MS;
+            }
+
+            if (stale && f.delete()) {
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            deleted.addAndGet(count);
+            System.out.println(new Date() + ": Deleted " + count + " unused job scripts from " + directory);
+        }
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    public long getDeletedCount() {
+        return deleted.get();
+    }
+
+    /**
+     * Quotes the string for the shell.
+     */
+    static String quote(String s) {
+        if (s == null) {
+            return "''";
+        }
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest(content)) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final File directory;
+    private static final int MAX_KNOWN_SCRIPTS = 10000;
+    private static final long REUSE_GRACE_MS = 10 * 60 * 1000;
+    private static final long MAX_SCRIPT_AGE_MS = 24 * 60 * 60 * 1000;
+    private static final long SWEEP_INTERVAL_MS = 60 * 60 * 1000;
+    // hash -> time it was handed out last, the least recently used first
+    private final Map<String, Long> knownScripts = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_KNOWN_SCRIPTS;
+        }
+    };
+    private final Map<String, String> scriptsByJob = new HashMap<String, String>();
+    private final Map<String, Integer> scriptUsers = new HashMap<String, Integer>();
+    private final Timer timer;
+    private volatile boolean directoryPrivate;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+}
@@ -0,0 +1,382 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+/**
+ * Memory mapped snapshot of the tracked task states, Pipeline's jobs and the
+ * position in the accounting file, written periodically. After a restart the
+ * plugin loads it in milliseconds and lets the reconnect reconciler publish
+ * only the transitions since the snapshot, instead of starting from nothing.
+ *
+ * The file has two slots which are written alternately, so a crash while
+ * writing leaves the previous snapshot intact. Slot layout: long sequence, int
+ * length, int CRC32 of the payload, then the payload.
+ */
+public class JobStateSnapshot {
+
+    /**
+     * The content of one snapshot.
+     */
+    public static class State {
+
+        public State(long time, String accountingFileKey, long accountingPosition, long[] taskKeys,
+                int[] taskStates, long[] ownedJobs) {
+            this.time = time;
+            this.accountingFileKey = accountingFileKey;
+            this.accountingPosition = accountingPosition;
+            this.taskKeys = taskKeys;
+            this.taskStates = taskStates;
+            this.ownedJobs = ownedJobs;
+        }
+
+        /**
+         * @return the capture time of the snapshot, unchanged states are not
+         * written again, so this is when the state last changed
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return identity of the accounting file the position belongs to
+         */
+        public String getAccountingFileKey() {
+            return accountingFileKey;
+        }
+
+        public long getAccountingPosition() {
+            return accountingPosition;
+        }
+
+        /**
+         * @return task keys, see {@link JobTaskStateCoalescer#key(int, int)}
+         */
+        public long[] getTaskKeys() {
+            return taskKeys;
+        }
+
+        public int[] getTaskStates() {
+            return taskStates;
+        }
+
+        public long[] getOwnedJobs() {
+            return ownedJobs;
+        }
+        private final long time;
+        private final String accountingFileKey;
+        private final long accountingPosition;
+        private final long[] taskKeys;
+        private final int[] taskStates;
+        private final long[] ownedJobs;
+    }
+
+    public JobStateSnapshot(File file) throws IOException {
+        this.file = file;
+
+        raf = new RandomAccessFile(file, "rw");
+        if (raf.length() >= HEADER_SIZE) {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        // a crash while growing the file may leave it longer than the slots
+        if (buffer == null || buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(SLOT_SIZE_OFFSET) <= 0
+                || raf.length() < HEADER_SIZE + 2L * buffer.getInt(SLOT_SIZE_OFFSET)) {
+            format(INITIAL_SLOT_SIZE);
+        }
+        slotSize = buffer.getInt(SLOT_SIZE_OFFSET);
+        sequence = Math.max(buffer.getLong(slotOffset(0)), buffer.getLong(slotOffset(1)));
+    }
+
+    /**
+     * @return the newest intact snapshot, null if there is none
+     */
+    public synchronized State load() {
+        State newest = null;
+        long newestSequence = 0;
+
+        for (int slot = 0; slot < 2; slot++) {
+            long seq = buffer.getLong(slotOffset(slot));
+            if (seq <= newestSequence) {
+                continue;
+            }
+
+            byte[] payload = readSlot(slot);
+            if (payload == null) {
+                System.err.println(new Date() + ": Job state snapshot slot " + slot + " of " + file
+                        + " is damaged, ignoring it.");
+                continue;
+            }
+
+            try {
+                newest = decode(ByteBuffer.wrap(payload));
+                newestSequence = seq;
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        sequence = Math.max(sequence, newestSequence);
+        return newest;
+    }
+
+    /**
+     * Writes the snapshot to the slot which does not hold the newest one.
+     */
+    public synchronized void write(State state) throws IOException {
+        byte[] payload = encode(state);
+        // the capture time leads the payload and changes every time
+        int contentCrc = crc(payload, 8, payload.length - 8);
+
+        if (contentCrc == lastContentCrc && payload.length == lastLength) {
+            return; // nothing changed
+        }
+        int crc = crc(payload, 0, payload.length);
+
+        if (payload.length > slotSize - SLOT_HEADER_SIZE) {
+            int size = slotSize;
+            while (payload.length > size - SLOT_HEADER_SIZE) {
+                size *= 2;
+            }
+            grow(size);
+        }
+
+        long seq = ++sequence;
+        int offset = slotOffset((int) (seq & 1));
+
+        // invalidate the slot first, the previous snapshot stays in the other
+        buffer.putLong(offset, 0);
+        buffer.position(offset + SLOT_HEADER_SIZE);
+        buffer.put(payload);
+        buffer.putInt(offset + 8, payload.length);
+        buffer.putInt(offset + 12, crc);
+        buffer.putLong(offset, seq);
+        buffer.force();
+
+        lastContentCrc = contentCrc;
+        lastLength = payload.length;
+    }
+
+    /**
+     * Writes a snapshot of the plugin's state periodically.
+     */
+    public void start(final JGDIPlugin plugin, long intervalMs) {
+        timer = new Timer("JobStateSnapshot", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    write(plugin.captureJobState());
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, intervalMs, intervalMs);
+    }
+
+    public synchronized void close() {
+        if (timer != null) {
+            timer.cancel();
+        }
+        buffer.force();
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Maps the file with two empty slots of the given size.
+     */
+    private void format(int size) throws IOException {
+        long length = HEADER_SIZE + 2L * size;
+        raf.setLength(length);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+        buffer.putInt(SLOT_SIZE_OFFSET, size);
+        buffer.putLong(HEADER_SIZE, 0);
+        buffer.putLong(HEADER_SIZE + size, 0);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+    }
+
+    /**
+     * Grows the slots to the given size, at least twice the current one. The
+     * newest snapshot is copied to the second slot of the new layout first,
+     * which lies beyond both current slots, and only then the header switches
+     * to the new layout, so a crash at any point leaves a snapshot to load.
+     */
+    private void grow(int size) throws IOException {
+        int newest = -1;
+        long newestSequence = 0;
+        byte[] payload = null;
+        for (int slot = 0; slot < 2; slot++) {
+            long seq = buffer.getLong(slotOffset(slot));
+            if (seq > newestSequence) {
+                byte[] p = readSlot(slot);
+                if (p != null) {
+                    newest = slot;
+                    newestSequence = seq;
+                    payload = p;
+                }
+            }
+        }
+
+        long length = HEADER_SIZE + 2L * size;
+        raf.setLength(length);
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+        if (newest >= 0) {
+            // odd, so the next write goes to the first slot and keeps the copy
+            long seq = Math.max(sequence, newestSequence) | 1;
+            int offset = HEADER_SIZE + size;
+            buffer.position(offset + SLOT_HEADER_SIZE);
+            buffer.put(payload);
+            buffer.putInt(offset + 8, payload.length);
+            buffer.putInt(offset + 12, crc(payload, 0, payload.length));
+            buffer.putLong(offset, seq);
+            buffer.force();
+            sequence = seq;
+        } else {
+            buffer.putLong(HEADER_SIZE + size, 0);
+        }
+
+        // the first slot of the new layout starts with the first old slot,
+        // which is an intact older snapshot or fails its CRC check
+        buffer.putInt(SLOT_SIZE_OFFSET, size);
+        buffer.force();
+        slotSize = size;
+    }
+
+    /**
+     * @return the payload of the slot, null if it is empty or damaged
+     */
+    private byte[] readSlot(int slot) {
+        int offset = slotOffset(slot);
+        int length = buffer.getInt(offset + 8);
+        int crc = buffer.getInt(offset + 12);
+        if (buffer.getLong(offset) <= 0 || length < 0 || length > slotSize - SLOT_HEADER_SIZE) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        buffer.position(offset + SLOT_HEADER_SIZE);
+        buffer.get(payload);
+        return crc(payload, 0, payload.length) == crc ? payload : null;
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private static byte[] encode(State state) {
+        byte[] fileKey = state.accountingFileKey != null ? state.accountingFileKey.getBytes(UTF8) : null;
+
+        int length = 8 + 8 + 2 + (fileKey != null ? fileKey.length : 0) + 4 + state.taskKeys.length * 12
+                + 4 + state.ownedJobs.length * 8;
+        ByteBuffer b = ByteBuffer.allocate(length);
+
+        b.putLong(state.time);
+        b.putLong(state.accountingPosition);
+        if (fileKey == null) {
+            b.putShort((short) -1);
+        } else {
+            b.putShort((short) fileKey.length);
+            b.put(fileKey);
+        }
+
+        b.putInt(state.taskKeys.length);
+        for (int i = 0; i < state.taskKeys.length; i++) {
+            b.putLong(state.taskKeys[i]);
+            b.putInt(state.taskStates[i]);
+        }
+
+        b.putInt(state.ownedJobs.length);
+        for (long jobId : state.ownedJobs) {
+            b.putLong(jobId);
+        }
+
+        return b.array();
+    }
+
+    private static State decode(ByteBuffer b) {
+        long time = b.getLong();
+        long accountingPosition = b.getLong();
+
+        String fileKey = null;
+        short keyLength = b.getShort();
+        if (keyLength >= 0) {
+            byte[] key = new byte[keyLength];
+            b.get(key);
+            fileKey = new String(key, UTF8);
+        }
+
+        int n = b.getInt();
+        long[] taskKeys = new long[n];
+        int[] taskStates = new int[n];
+        for (int i = 0; i < n; i++) {
+            taskKeys[i] = b.getLong();
+            taskStates[i] = b.getInt();
+        }
+
+        long[] ownedJobs = new long[b.getInt()];
+        for (int i = 0; i < ownedJobs.length; i++) {
+            ownedJobs[i] = b.getLong();
+        }
+
+        return new State(time, fileKey, accountingPosition, taskKeys, taskStates, ownedJobs);
+    }
+
+    private static int crc(byte[] b, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(b, offset, length);
+        return (int) crc.getValue();
+    }
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4A47534E; // JGSN
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SLOT_SIZE_OFFSET = 4;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_HEADER_SIZE = 16;
+    private static final int INITIAL_SLOT_SIZE = 256 * 1024;
+    private final File file;
+    private final RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private int slotSize;
+    private long sequence;
+    private int lastContentCrc;
+    private int lastLength = -1;
+    private Timer timer;
+}
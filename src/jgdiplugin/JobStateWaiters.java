@@ -0,0 +1,370 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jgdiplugin.util.TimerWheel;
+import plgrid.event.EventFinished;
+import plgrid.event.EventQueued;
+import plgrid.event.EventRunning;
+import plgrid.event.GridEvent;
+
+/**
+ * Lets callers wait for a job or task to reach a state instead of polling
+ * getJobInfo. The waiters are completed by the events delivered to Pipeline,
+ * their timeouts share one timer wheel, so waiting costs no qmaster requests.
+ */
+public class JobStateWaiters {
+
+    /**
+     * The states to wait for, in the order a job goes through them. A wait
+     * for a state is also completed by any later state.
+     */
+    public enum JobState {
+
+        QUEUED, RUNNING, FINISHED
+    }
+
+    /**
+     * Notified when the state was reached or the wait timed out, on the
+     * event delivery or timer thread. Must not block.
+     */
+    public interface Callback {
+
+        void stateReached(GridEvent evt);
+
+        void timedOut();
+    }
+
+    public JobStateWaiters(JGDIPlugin plugin) {
+        this.plugin = plugin;
+        wheel = new TimerWheel("JobStateWaiterTimeouts", WHEEL_TICK_MS, WHEEL_SIZE);
+    }
+
+    /**
+     * Waits for the job or task to reach the state.
+     *
+     * @param taskId the task, null for any task of the job
+     * @param timeoutMs 0 to wait without timeout
+     * @return a future which yields the event which completed the wait; its
+     * get() throws a TimeoutException wrapped in an ExecutionException
+     * when the wait timed out
+     */
+    public Future<GridEvent> waitFor(String jobId, String taskId, JobState state, long timeoutMs) {
+        WaiterFuture future = new WaiterFuture();
+        future.waiter = register(jobId, taskId, state, timeoutMs, future);
+        return future;
+    }
+
+    /**
+     * Calls back when the job or task reached the state, see
+     * {@link #waitFor(String, String, JobState, long)}.
+     */
+    public void waitFor(String jobId, String taskId, JobState state, long timeoutMs, Callback callback) {
+        register(jobId, taskId, state, timeoutMs, callback);
+    }
+
+    public synchronized int getWaiterCount() {
+        return waiterCount;
+    }
+
+    /**
+     * Completes the waiters of the event. Called for every event delivered
+     * to Pipeline.
+     */
+    public void eventDelivered(GridEvent evt) {
+        JobState state = stateOf(evt);
+        if (state == null || evt.getJobId() == null) {
+            return;
+        }
+
+        String jobId = jobIdOf(evt.getJobId());
+        String taskId = evt.getTaskId();
+        // finished events of task 0 stand for the whole job, i.e. deleted jobs
+        boolean wholeJob = state == JobState.FINISHED && (taskId == null || taskId.equals("0"));
+
+        List<Waiter> completed = new ArrayList<Waiter>();
+
+        synchronized (this) {
+            if (state == JobState.FINISHED) {
+                recentlyFinished.put(jobId + "." + taskId, evt);
+                // for the waits on any task of the job
+                recentlyFinished.put(jobId, evt);
+            }
+
+            List<Waiter> list = waiters.get(jobId);
+            if (list == null) {
+                return;
+            }
+
+            for (Iterator<Waiter> it = list.iterator(); it.hasNext();) {
+                Waiter w = it.next();
+                if (w.state.ordinal() <= state.ordinal()
+                        && (wholeJob || w.taskId == null || w.taskId.equals(taskId))) {
+                    it.remove();
+                    completed.add(w);
+                }
+            }
+
+            if (list.isEmpty()) {
+                waiters.remove(jobId);
+            }
+            waiterCount -= completed.size();
+        }
+
+        for (Waiter w : completed) {
+            w.complete(evt);
+        }
+    }
+
+    public void shutdown() {
+        wheel.shutdown();
+    }
+
+    private Waiter register(String jobId, String taskId, JobState state, long timeoutMs, Callback callback) {
+        jobId = jobIdOf(jobId);
+        final Waiter w = new Waiter(jobId, taskId, state, callback);
+
+        synchronized (this) {
+            List<Waiter> list = waiters.get(jobId);
+            if (list == null) {
+                list = new LinkedList<Waiter>();
+                waiters.put(jobId, list);
+            }
+            list.add(w);
+            waiterCount++;
+        }
+
+        if (timeoutMs > 0) {
+            w.timeout = wheel.schedule(new Runnable() {
+                public void run() {
+                    if (remove(w)) {
+                        w.callback.timedOut();
+                    }
+                }
+            }, timeoutMs);
+        }
+
+        // checked after registering, so an event delivered meanwhile is not missed
+        GridEvent reached = alreadyReached(jobId, taskId, state);
+        if (reached != null && remove(w)) {
+            w.complete(reached);
+        }
+        return w;
+    }
+
+    /**
+     * @return the event if the state was reached before the wait started
+     */
+    private GridEvent alreadyReached(String jobId, String taskId, JobState state) {
+        synchronized (this) {
+            GridEvent evt = recentlyFinished.get(taskId != null ? jobId + "." + taskId : jobId);
+            if (evt == null) {
+                evt = recentlyFinished.get(jobId + ".0");
+            }
+            if (evt != null) {
+                return evt;
+            }
+        }
+
+        if (state == JobState.FINISHED) {
+            return null;
+        }
+
+        try {
+            JobTaskStateCoalescer coalescer = plugin.getTaskStateCoalescer();
+            int job = Integer.parseInt(jobId);
+            int task;
+            int s;
+
+            if (taskId != null) {
+                task = Integer.parseInt(taskId);
+                s = coalescer.getState(job, task);
+            } else {
+                // any task of the job, a running one if there is one
+                task = coalescer.getTask(job, JGDIJobModListener.STATE_RUNNING);
+                s = JGDIJobModListener.STATE_RUNNING;
+                if (task == -1) {
+                    task = coalescer.getTask(job, JobTaskStateCoalescer.NO_STATE);
+                    s = task == -1 ? JobTaskStateCoalescer.NO_STATE : coalescer.getState(job, task);
+                }
+            }
+
+            if (s == JGDIJobModListener.STATE_RUNNING) {
+                return new EventRunning(jobId, String.valueOf(task));
+            }
+            if (s != JobTaskStateCoalescer.NO_STATE && state == JobState.QUEUED) {
+                return new EventQueued(jobId, String.valueOf(task));
+            }
+        } catch (NumberFormatException ex) {
+            // not a job of this cluster
+        }
+        return null;
+    }
+
+    private synchronized boolean remove(Waiter w) {
+        List<Waiter> list = waiters.get(w.jobId);
+        if (list == null || !list.remove(w)) {
+            return false;
+        }
+        if (list.isEmpty()) {
+            waiters.remove(w.jobId);
+        }
+        waiterCount--;
+        return true;
+    }
+
+    private static JobState stateOf(GridEvent evt) {
+        if (evt instanceof EventFinished) {
+            return JobState.FINISHED;
+        } else if (evt instanceof EventRunning) {
+            return JobState.RUNNING;
+        } else if (evt instanceof EventQueued) {
+            return JobState.QUEUED;
+        }
+        return null;
+    }
+
+    private static String jobIdOf(String jobId) {
+        // array job ids carry their task range
+        int dot = jobId.indexOf('.');
+        return dot == -1 ? jobId : jobId.substring(0, dot);
+    }
+
+    private static class Waiter {
+
+        private final String jobId;
+        private final String taskId;
+        private final JobState state;
+        private final Callback callback;
+        private volatile TimerWheel.Timeout timeout;
+
+        private Waiter(String jobId, String taskId, JobState state, Callback callback) {
+            this.jobId = jobId;
+            this.taskId = taskId;
+            this.state = state;
+            this.callback = callback;
+        }
+
+        private void complete(GridEvent evt) {
+            TimerWheel.Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+            try {
+                callback.stateReached(evt);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private class WaiterFuture implements Future<GridEvent>, Callback {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Waiter waiter;
+        private volatile GridEvent event;
+        private volatile boolean timedOut;
+        private volatile boolean cancelled;
+
+        public void stateReached(GridEvent evt) {
+            event = evt;
+            done.countDown();
+        }
+
+        public void timedOut() {
+            timedOut = true;
+            done.countDown();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            Waiter w = waiter;
+            if (isDone() || w == null || !remove(w)) {
+                return false;
+            }
+            if (w.timeout != null) {
+                w.timeout.cancel();
+            }
+            cancelled = true;
+            done.countDown();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public GridEvent get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        public GridEvent get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private GridEvent result() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (timedOut) {
+                throw new ExecutionException(new TimeoutException("Job state not reached in time"));
+            }
+            return event;
+        }
+    }
+    private static final long WHEEL_TICK_MS = 100;
+    private static final int WHEEL_SIZE = 512;
+    private static final int RECENTLY_FINISHED_SIZE = 10000;
+    private final JGDIPlugin plugin;
+    private final TimerWheel wheel;
+    private final Map<String, List<Waiter>> waiters = new HashMap<String, List<Waiter>>();
+    private final Map<String, GridEvent> recentlyFinished = new LinkedHashMap<String, GridEvent>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, GridEvent> eldest) {
+            return size() > RECENTLY_FINISHED_SIZE;
+        }
+    };
+    private int waiterCount;
+}
@@ -0,0 +1,290 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import jgdiplugin.util.LongHashSet;
+import jgdiplugin.util.LongIntHashMap;
+import plgrid.event.EventQueued;
+import plgrid.event.GridEvent;
+
+/**
+ * Keeps the last SGE state of every job task and drops task modifications
+ * which do not change it. Plain queued events are held back for a short
+ * window, so a task that starts running right away produces only one running
+ * event instead of a queued and a running event.
+ */
+public class JobTaskStateCoalescer {
+
+    public JobTaskStateCoalescer(JGDIPlugin plugin, long windowMs) {
+        this.plugin = plugin;
+        this.windowMs = windowMs;
+
+        states = new LongIntHashMap(1024);
+        tasksByJob = new HashMap<Integer, LongHashSet>();
+        pendingQueued = new LinkedHashMap<Long, PendingEvent>();
+        finishedJobs = new LinkedHashMap<Integer, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > MAX_FINISHED_JOBS;
+            }
+        };
+
+        timer = new Timer("JobTaskStateCoalescer", true);
+        timer.schedule(new FlushTask(), windowMs, Math.max(1, windowMs / 2));
+    }
+
+    public static long key(int jobId, int taskNumber) {
+        return ((long) jobId << 32) | (taskNumber & 0xFFFFFFFFL);
+    }
+
+    public static int jobIdOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int taskNumberOf(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Records the new state of a task and publishes the corresponding event
+     * unless it is redundant.
+     *
+     * @param evt event to publish, null if the state is not reported to
+     * Pipeline
+     * @return false if the transition was dropped as a duplicate
+     */
+    public boolean stateChanged(int jobId, int taskNumber, int state, GridEvent evt) {
+        long key = key(jobId, taskNumber);
+
+        // Events are published while holding the lock, so a held back queued
+        // event can never overtake the event which superseded it. Publishing
+        // only hands the event over to the event pipeline and does not block.
+        synchronized (this) {
+            if (finishedJobs.containsKey(jobId)) {
+                // late modification of a deleted job
+                duplicates++;
+                return false;
+            }
+
+            int last = states.put(key, state, NO_STATE);
+
+            if (last == state) {
+                duplicates++;
+                return false;
+            }
+            if (last == NO_STATE) {
+                index(jobId, taskNumber);
+            }
+
+            if (evt == null) {
+                // the new state is not reported, a held back queued event stays
+                return true;
+            }
+
+            PendingEvent pending = pendingQueued.remove(key);
+            if (pending != null) {
+                superseded++;
+            }
+
+            if (evt instanceof EventQueued && !evt.hasError()) {
+                pendingQueued.put(key, new PendingEvent(evt, System.currentTimeMillis() + windowMs));
+            } else {
+                plugin.publishEvent(evt);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Forgets the tasks of a finished job. A held back queued event of such a
+     * task is superseded by the finished event.
+     *
+     * @param taskNumber task number, 0 to forget all tasks of the job; later
+     * modifications of the job are dropped then
+     */
+    public synchronized void finished(int jobId, int taskNumber) {
+        if (taskNumber > 0) {
+            forget(jobId, taskNumber);
+            LongHashSet tasks = tasksByJob.get(jobId);
+            if (tasks != null) {
+                tasks.remove(taskNumber);
+                if (tasks.size() == 0) {
+                    tasksByJob.remove(jobId);
+                }
+            }
+            return;
+        }
+
+        finishedJobs.put(jobId, Boolean.TRUE);
+
+        LongHashSet tasks = tasksByJob.remove(jobId);
+        if (tasks != null) {
+            for (long t : tasks.toArray()) {
+                forget(jobId, (int) t);
+            }
+        }
+    }
+
+    /**
+     * Sets the state of a task from a job state snapshot without publishing
+     * an event.
+     */
+    public synchronized void restoreState(int jobId, int taskNumber, int state) {
+        if (states.put(key(jobId, taskNumber), state, NO_STATE) == NO_STATE) {
+            index(jobId, taskNumber);
+        }
+    }
+
+    /**
+     * @return last known state of the task, or NO_STATE if it is not tracked
+     */
+    public synchronized int getState(int jobId, int taskNumber) {
+        return states.get(key(jobId, taskNumber), NO_STATE);
+    }
+
+    /**
+     * @param state the state to look for, NO_STATE for any tracked state
+     * @return the number of a tracked task of the job in the state, -1 if
+     * there is none
+     */
+    public synchronized int getTask(int jobId, int state) {
+        LongHashSet tasks = tasksByJob.get(jobId);
+        if (tasks == null) {
+            return -1;
+        }
+        for (long t : tasks.toArray()) {
+            int s = states.get(key(jobId, (int) t), NO_STATE);
+            if (s != NO_STATE && (state == NO_STATE || s == state)) {
+                return (int) t;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return keys of all tracked tasks, see {@link #key(int, int)}
+     */
+    public synchronized long[] getTrackedTasks() {
+        return states.keys();
+    }
+
+    /**
+     * @return the tracked tasks and their states, taken atomically
+     */
+    public synchronized LongIntHashMap copyStates() {
+        LongIntHashMap copy = new LongIntHashMap(states.size());
+        for (long key : states.keys()) {
+            copy.put(key, states.get(key, NO_STATE), NO_STATE);
+        }
+        return copy;
+    }
+
+    public synchronized int getTrackedTaskCount() {
+        return states.size();
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    public synchronized long getSupersededCount() {
+        return superseded;
+    }
+
+    public void shutdown() {
+        timer.cancel();
+    }
+
+    private void forget(int jobId, int taskNumber) {
+        long key = key(jobId, taskNumber);
+        states.remove(key, NO_STATE);
+        if (pendingQueued.remove(key) != null) {
+            superseded++;
+        }
+    }
+
+    private void index(int jobId, int taskNumber) {
+        LongHashSet tasks = tasksByJob.get(jobId);
+        if (tasks == null) {
+            tasks = new LongHashSet(4);
+            tasksByJob.put(jobId, tasks);
+        }
+        tasks.add(taskNumber);
+    }
+
+    private synchronized void flush() {
+        long now = System.currentTimeMillis();
+
+        Iterator<PendingEvent> it = pendingQueued.values().iterator();
+        while (it.hasNext()) {
+            PendingEvent p = it.next();
+            if (p.dueTime > now) {
+                break;
+            }
+            it.remove();
+            plugin.publishEvent(p.event);
+        }
+    }
+
+    private class FlushTask extends TimerTask {
+
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private static class PendingEvent {
+
+        private final GridEvent event;
+        private final long dueTime;
+
+        PendingEvent(GridEvent event, long dueTime) {
+            this.event = event;
+            this.dueTime = dueTime;
+        }
+    }
+    public static final int NO_STATE = -1;
+    private static final int MAX_FINISHED_JOBS = 10000;
+    private final JGDIPlugin plugin;
+    private final long windowMs;
+    private final LongIntHashMap states;
+    private final Map<Integer, LongHashSet> tasksByJob;
+    private final LinkedHashMap<Integer, Boolean> finishedJobs;
+    private final LinkedHashMap<Long, PendingEvent> pendingQueued;
+    private final Timer timer;
+    private long duplicates;
+    private long superseded;
+}
@@ -0,0 +1,158 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Result of deleting one job or task, parsed from the answers of qmaster or
+ * the output of qdel.
+ */
+public class KillJobResult {
+
+    public enum Status {
+
+        /**
+         * The job was deleted or registered for deletion.
+         */
+        DELETED,
+        /**
+         * The job does not exist (anymore).
+         */
+        NOT_FOUND,
+        /**
+         * Qmaster or qdel refused to delete the job.
+         */
+        FAILED,
+        /**
+         * No answer mentioned the job.
+         */
+        UNKNOWN
+    }
+
+    public KillJobResult(String jobId, Status status, String message) {
+        this.jobId = jobId;
+        this.status = status;
+        this.message = message;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isDeleted() {
+        return status == Status.DELETED || status == Status.NOT_FOUND;
+    }
+
+    @Override
+    public String toString() {
+        return jobId + ": " + status + (message != null ? " (" + message + ")" : "");
+    }
+
+    /**
+     * Assigns the answer messages to the job ids they mention.
+     *
+     * @param jobIds the ids which were deleted
+     * @param messages one message per answer or output line
+     * @param unmentioned status of the ids no message mentions
+     * @param unmentionedMessage message of the ids no message mentions
+     */
+    static Map<String, KillJobResult> parse(Collection<String> jobIds, List<String> messages,
+            Status unmentioned, String unmentionedMessage) {
+        Map<String, KillJobResult> results = new LinkedHashMap<String, KillJobResult>();
+
+        Set<String> requested = new HashSet<String>(jobIds);
+
+        // job number -> requested ids, to match answers which only name the
+        // job; such an answer holds for all of its tasks
+        Map<String, List<String>> byJobNumber = new LinkedHashMap<String, List<String>>();
+        for (String id : jobIds) {
+            int dot = id.indexOf('.');
+            String jobNumber = dot == -1 ? id : id.substring(0, dot);
+            List<String> ids = byJobNumber.get(jobNumber);
+            if (ids == null) {
+                ids = new ArrayList<String>(1);
+                byJobNumber.put(jobNumber, ids);
+            }
+            ids.add(id);
+        }
+
+        for (String msg : messages) {
+            if (msg == null || msg.trim().length() == 0) {
+                continue;
+            }
+            msg = msg.trim();
+            Status status = statusOf(msg);
+
+            for (String token : msg.split("[\\s\"',]+")) {
+                if (requested.contains(token)) {
+                    if (!results.containsKey(token)) {
+                        results.put(token, new KillJobResult(token, status, msg));
+                    }
+                } else if (byJobNumber.containsKey(token)) {
+                    for (String id : byJobNumber.get(token)) {
+                        if (!results.containsKey(id)) {
+                            results.put(id, new KillJobResult(id, status, msg));
+                        }
+                    }
+                }
+            }
+        }
+
+        for (String id : jobIds) {
+            if (!results.containsKey(id)) {
+                results.put(id, new KillJobResult(id, unmentioned, unmentionedMessage));
+            }
+        }
+
+        return results;
+    }
+
+    private static Status statusOf(String msg) {
+        if (msg.contains("does not exist")) {
+            return Status.NOT_FOUND;
+        }
+        if (msg.contains("deleted") || msg.contains("for deletion")) {
+            return Status.DELETED;
+        }
+        return Status.FAILED;
+    }
+    private final String jobId;
+    private final Status status;
+    private final String message;
+}
@@ -0,0 +1,400 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jgdiplugin.util.LatencyHistogram;
+
+/**
+ * Runs the SGE command line tools (qsub, qdel) for the plugin.
+ *
+ * Both output streams are drained as they are written, into buffers of a
+ * bounded size, so a chatty command can neither block on a full pipe nor
+ * exhaust the heap. One reaper thread polls all running processes for their
+ * exit and kills the ones past their deadline, so no caller waits for a hung
+ * command forever. The latency of every command is recorded per command name.
+ */
+public class ProcessExecutor {
+
+    /**
+     * Outcome of one command.
+     */
+    public static class Result {
+
+        private final int exitCode;
+        private final String stdout;
+        private final String stderr;
+        private final boolean timedOut;
+        private final long elapsedMs;
+
+        private Result(int exitCode, String stdout, String stderr, boolean timedOut, long elapsedMs) {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.timedOut = timedOut;
+            this.elapsedMs = elapsedMs;
+        }
+
+        /**
+         * @return the exit code, -1 if the command was killed
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getStdout() {
+            return stdout;
+        }
+
+        public String getStderr() {
+            return stderr;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+    }
+
+    public ProcessExecutor(int maxOutputBytes, int maxProcesses) {
+        this.maxOutputBytes = maxOutputBytes;
+
+        processPermits = new Semaphore(maxProcesses, true);
+        drainers = BlockingExecutors.newExecutor("ProcessStreamDrainer", false);
+
+        reaper = new Thread("ProcessReaper") {
+            @Override
+            public void run() {
+                reap();
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Runs the command and waits until it exits or its deadline passed.
+     *
+     * @param env variables added to the environment of the plugin, may be
+     * null
+     * @param timeoutMs the command is killed after this time
+     */
+    public Result execute(List<String> command, Map<String, String> env, long timeoutMs)
+            throws IOException, InterruptedException {
+        return execute(command, env, null, timeoutMs);
+    }
+
+    /**
+     * Runs the command in the given working directory, see
+     * {@link #execute(java.util.List, java.util.Map, long)}.
+     */
+    public Result execute(List<String> command, Map<String, String> env, File directory, long timeoutMs)
+            throws IOException, InterruptedException {
+        // bounds the processes, not the threads waiting for them
+        Semaphore permits = processPermits;
+        permits.acquire();
+        try {
+            return run(command, env, directory, timeoutMs);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Limits the number of processes running at the same time. Commands
+     * beyond the limit wait for a running one to exit.
+     */
+    public void setMaxProcesses(int maxProcesses) {
+        processPermits = new Semaphore(Math.max(1, maxProcesses), true);
+    }
+
+    /**
+     * Drains the output streams on virtual threads, see
+     * {@link BlockingExecutors}.
+     */
+    public void setVirtualThreads(boolean virtual) {
+        // not shut down, a command may be handing its streams to it right
+        // now; its idle threads end by themselves
+        drainers = BlockingExecutors.newExecutor("ProcessStreamDrainer", virtual);
+    }
+
+    private Result run(List<String> command, Map<String, String> env, File directory, long timeoutMs)
+            throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        if (env != null) {
+            pb.environment().putAll(env);
+        }
+        if (directory != null) {
+            pb.directory(directory);
+        }
+
+        long start = System.currentTimeMillis();
+        Process process = pb.start();
+        Execution exec = new Execution(process, start + timeoutMs);
+
+        try {
+            try {
+                process.getOutputStream().close();
+            } catch (IOException ex) {
+                // the command does not read its input
+            }
+
+            drainers.execute(new Drainer(process.getInputStream(), exec.stdout, exec.streamsDone));
+            drainers.execute(new Drainer(process.getErrorStream(), exec.stderr, exec.streamsDone));
+
+            synchronized (running) {
+                running.add(exec);
+                running.notifyAll();
+            }
+
+            exec.exited.await();
+
+            // the output is complete once both streams are at their end
+            exec.streamsDone.await(STREAM_GRACE_MS, TimeUnit.MILLISECONDS);
+        } finally {
+            synchronized (running) {
+                running.remove(exec);
+            }
+            release(process);
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        histogram(commandName(command)).record(elapsed);
+
+        if (exec.timedOut) {
+            timeouts.incrementAndGet();
+        }
+
+        return new Result(exec.exitCode, exec.stdout.toString(), exec.stderr.toString(), exec.timedOut, elapsed);
+    }
+
+    /**
+     * @return the latency histogram of the command, i.e. "qsub"
+     */
+    public LatencyHistogram getLatencyHistogram(String commandName) {
+        return histogram(commandName);
+    }
+
+    public Map<String, LatencyHistogram> getLatencyHistograms() {
+        synchronized (histograms) {
+            return new HashMap<String, LatencyHistogram>(histograms);
+        }
+    }
+
+    public int getRunningCount() {
+        synchronized (running) {
+            return running.size();
+        }
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public void shutdown() {
+        reaper.interrupt();
+        drainers.shutdownNow();
+    }
+
+    /**
+     * @return the name of the SGE command, skipping sudo and its options
+     */
+    static String commandName(List<String> command) {
+        int i = 0;
+        if (!command.isEmpty() && command.get(0).endsWith("sudo")) {
+            i++;
+            while (i < command.size() && command.get(i).startsWith("-")) {
+                // options with an argument
+                if (command.get(i).equals("-u") || command.get(i).equals("-g")) {
+                    i++;
+                }
+                i++;
+            }
+        }
+
+        if (i >= command.size()) {
+            return command.isEmpty() ? "" : command.get(0);
+        }
+        return new File(command.get(i)).getName();
+    }
+
+    private LatencyHistogram histogram(String name) {
+        synchronized (histograms) {
+            LatencyHistogram h = histograms.get(name);
+            if (h == null) {
+                h = new LatencyHistogram();
+                histograms.put(name, h);
+            }
+            return h;
+        }
+    }
+
+    private void reap() {
+        try {
+            while (true) {
+                List<Execution> snapshot;
+                synchronized (running) {
+                    while (running.isEmpty()) {
+                        running.wait();
+                    }
+                    snapshot = new ArrayList<Execution>(running);
+                }
+
+                long now = System.currentTimeMillis();
+                for (Execution exec : snapshot) {
+                    if (exec.exited.getCount() == 0) {
+                        continue;
+                    }
+
+                    try {
+                        exec.exitCode = exec.process.exitValue();
+                        exec.exited.countDown();
+                    } catch (IllegalThreadStateException ex) {
+                        if (now > exec.deadline) {
+                            exec.timedOut = true;
+                            exec.exitCode = -1;
+                            exec.process.destroy();
+                            exec.exited.countDown();
+                        }
+                    }
+                }
+
+                Thread.sleep(REAP_INTERVAL_MS);
+            }
+        } catch (InterruptedException ex) {
+            // shut down
+        }
+    }
+
+    private static void release(Process p) {
+        try {
+            p.getInputStream().close();
+        } catch (Exception ex) {
+            // nothing to do
+        }
+        try {
+            p.getErrorStream().close();
+        } catch (Exception ex) {
+            // nothing to do
+        }
+        p.destroy();
+    }
+
+    private class Execution {
+
+        private final Process process;
+        private final long deadline;
+        private final BoundedBuffer stdout = new BoundedBuffer(maxOutputBytes);
+        private final BoundedBuffer stderr = new BoundedBuffer(maxOutputBytes);
+        private final CountDownLatch exited = new CountDownLatch(1);
+        private final CountDownLatch streamsDone = new CountDownLatch(2);
+        private volatile int exitCode;
+        private volatile boolean timedOut;
+
+        private Execution(Process process, long deadline) {
+            this.process = process;
+            this.deadline = deadline;
+        }
+    }
+
+    private static class Drainer implements Runnable {
+
+        private final InputStream in;
+        private final BoundedBuffer buffer;
+        private final CountDownLatch done;
+
+        private Drainer(InputStream in, BoundedBuffer buffer, CountDownLatch done) {
+            this.in = in;
+            this.buffer = buffer;
+            this.done = done;
+        }
+
+        public void run() {
+            byte[] buff = new byte[4096];
+            try {
+                int n;
+                while ((n = in.read(buff)) != -1) {
+                    buffer.write(buff, n);
+                }
+            } catch (IOException ex) {
+                // the stream was closed after the deadline
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Keeps the first bytes of a stream and counts the rest.
+     */
+    private static class BoundedBuffer {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final int limit;
+        private long dropped;
+
+        private BoundedBuffer(int limit) {
+            this.limit = limit;
+        }
+
+        private synchronized void write(byte[] b, int len) {
+            int n = Math.min(len, limit - out.size());
+            if (n > 0) {
+                out.write(b, 0, n);
+            }
+            dropped += len - Math.max(n, 0);
+        }
+
+        @Override
+        public synchronized String toString() {
+            String s = out.toString();
+            return dropped > 0 ? s + "\n[" + dropped + " more bytes]" : s;
+        }
+    }
+    private static final long REAP_INTERVAL_MS = 10;
+    private static final long STREAM_GRACE_MS = 1000;
+    private final int maxOutputBytes;
+    private volatile ExecutorService drainers;
+    private volatile Semaphore processPermits;
+    private final Thread reaper;
+    private final LinkedList<Execution> running = new LinkedList<Execution>();
+    private final Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+    private final AtomicLong timeouts = new AtomicLong();
+}
@@ -0,0 +1,330 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import com.sun.grid.jgdi.JGDI;
+import com.sun.grid.jgdi.JGDIFactory;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The qmaster endpoints the plugin can connect to.
+ *
+ * When qmaster is lost all endpoints are bootstrapped in parallel and the
+ * first one which answers becomes the active endpoint. The act_qmaster file of
+ * every endpoint is watched, so a takeover by a shadow master is noticed
+ * within a second instead of waiting for the heartbeat.
+ */
+public class QmasterEndpoints {
+
+    /**
+     * Notified when the act_qmaster file of an endpoint changed.
+     */
+    public interface MasterChangeListener {
+
+        void qmasterMoved(String bootstrapURL, String oldHost, String newHost);
+    }
+
+    /**
+     * A JGDI connection to one endpoint.
+     */
+    public static class Connection {
+
+        private final String bootstrapURL;
+        private final JGDI jgdi;
+
+        private Connection(String bootstrapURL, JGDI jgdi) {
+            this.bootstrapURL = bootstrapURL;
+            this.jgdi = jgdi;
+        }
+
+        public String getBootstrapURL() {
+            return bootstrapURL;
+        }
+
+        public JGDI getJGDI() {
+            return jgdi;
+        }
+    }
+
+    public QmasterEndpoints(String bootstrapURL, MasterChangeListener listener) {
+        this.listener = listener;
+        activeURL = bootstrapURL;
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "QmasterConnect");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        List<String> urls = new ArrayList<String>();
+        urls.add(bootstrapURL);
+        setBootstrapURLs(urls);
+
+        timer = new Timer("ActQmasterWatcher", true);
+        timer.schedule(new WatchTask(), ACT_QMASTER_POLL_MS, ACT_QMASTER_POLL_MS);
+    }
+
+    /**
+     * Replaces the endpoint list. The active endpoint stays active if it is
+     * still in the list.
+     */
+    public synchronized void setBootstrapURLs(List<String> urls) {
+        bootstrapURLs = new ArrayList<String>(urls);
+
+        Map<String, String> hosts = new HashMap<String, String>();
+        for (String url : bootstrapURLs) {
+            String host = actQmasterHosts.get(url);
+            hosts.put(url, host != null ? host : readActQmaster(url));
+        }
+        actQmasterHosts = hosts;
+
+        if (!bootstrapURLs.contains(activeURL) && !bootstrapURLs.isEmpty()) {
+            activeURL = bootstrapURLs.get(0);
+        }
+    }
+
+    public synchronized List<String> getBootstrapURLs() {
+        return new ArrayList<String>(bootstrapURLs);
+    }
+
+    public synchronized String getActiveURL() {
+        return activeURL;
+    }
+
+    /**
+     * Bootstraps all endpoints in parallel. The first endpoint which answers
+     * becomes the active one, the connections to the others are closed.
+     *
+     * @return the connection to the active endpoint, null if no endpoint
+     * answered within the timeout
+     */
+    public Connection connect(long timeoutMs) throws InterruptedException {
+        List<String> urls = getBootstrapURLs();
+
+        if (urls.size() == 1) {
+            try {
+                return activate(open(urls.get(0)));
+            } catch (Exception ex) {
+                // we don't need to print errors when qmaster is down
+                return null;
+            }
+        }
+
+        final AtomicBoolean decided = new AtomicBoolean(false);
+        CompletionService<Connection> cs = new ExecutorCompletionService<Connection>(executor);
+
+        for (final String url : urls) {
+            cs.submit(new Callable<Connection>() {
+                public Connection call() throws Exception {
+                    Connection c = open(url);
+                    if (decided.compareAndSet(false, true)) {
+                        return c;
+                    }
+                    closeQuietly(c.jgdi);
+                    return null;
+                }
+            });
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int pending = urls.size();
+
+        while (pending > 0) {
+            long wait = deadline - System.currentTimeMillis();
+            Future<Connection> f = wait > 0 ? cs.poll(wait, TimeUnit.MILLISECONDS) : null;
+
+            if (f == null) {
+                if (decided.compareAndSet(false, true)) {
+                    return null; // late connections close themselves
+                }
+                // an endpoint answered just now, wait for its result
+                f = cs.take();
+            }
+            pending--;
+
+            try {
+                Connection c = f.get();
+                if (c != null) {
+                    return activate(c);
+                }
+            } catch (Exception ex) {
+                // this endpoint is down
+            }
+        }
+
+        return null;
+    }
+
+    public void shutdown() {
+        timer.cancel();
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the SGE root of the bootstrap URL
+     */
+    public static String getRoot(String bootstrapURL) {
+        String s = stripScheme(bootstrapURL);
+        int at = s.lastIndexOf('@');
+        return at == -1 ? s : s.substring(0, at);
+    }
+
+    /**
+     * @return the SGE cell of the bootstrap URL
+     */
+    public static String getCell(String bootstrapURL) {
+        String s = stripScheme(bootstrapURL);
+        int at = s.lastIndexOf('@');
+        int colon = s.lastIndexOf(':');
+        if (at == -1) {
+            return null;
+        }
+        return colon > at ? s.substring(at + 1, colon) : s.substring(at + 1);
+    }
+
+    /**
+     * @return the qmaster port of the bootstrap URL
+     */
+    public static String getPort(String bootstrapURL) {
+        String s = stripScheme(bootstrapURL);
+        int at = s.lastIndexOf('@');
+        int colon = s.lastIndexOf(':');
+        return colon > at ? s.substring(colon + 1) : null;
+    }
+
+    private static String stripScheme(String bootstrapURL) {
+        String prefix = "bootstrap://";
+        return bootstrapURL.startsWith(prefix) ? bootstrapURL.substring(prefix.length()) : bootstrapURL;
+    }
+
+    private static Connection open(String url) throws Exception {
+        JGDI jgdi = JGDIFactory.newSynchronizedInstance(url);
+        try {
+            jgdi.getEventClientList();
+        } catch (Exception ex) {
+            closeQuietly(jgdi);
+            throw ex;
+        }
+        return new Connection(url, jgdi);
+    }
+
+    private Connection activate(Connection c) {
+        synchronized (this) {
+            activeURL = c.bootstrapURL;
+        }
+        return c;
+    }
+
+    private static void closeQuietly(JGDI jgdi) {
+        try {
+            jgdi.close();
+        } catch (Exception ex) {
+            // the connection is not used
+        }
+    }
+
+    private static String readActQmaster(String url) {
+        File f = new File(getRoot(url) + File.separator + getCell(url) + File.separator + "common"
+                + File.separator + "act_qmaster");
+
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(f));
+            String line = br.readLine();
+            return line == null ? null : line.trim();
+        } catch (Exception ex) {
+            return null;
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (Exception ex) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private class WatchTask extends TimerTask {
+
+        @Override
+        public void run() {
+            Map<String, String> hosts;
+            synchronized (QmasterEndpoints.this) {
+                hosts = new HashMap<String, String>(actQmasterHosts);
+            }
+
+            for (Map.Entry<String, String> e : hosts.entrySet()) {
+                String host = readActQmaster(e.getKey());
+                String oldHost = e.getValue();
+
+                if (host == null || host.equals(oldHost)) {
+                    continue;
+                }
+
+                synchronized (QmasterEndpoints.this) {
+                    if (actQmasterHosts.containsKey(e.getKey())) {
+                        actQmasterHosts.put(e.getKey(), host);
+                    }
+                }
+
+                if (oldHost != null) {
+                    System.err.println(new Date() + ": Qmaster of " + e.getKey() + " moved from " + oldHost
+                            + " to " + host);
+                    try {
+                        listener.qmasterMoved(e.getKey(), oldHost, host);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+    private static final long ACT_QMASTER_POLL_MS = 1000;
+    private final MasterChangeListener listener;
+    private final ExecutorService executor;
+    private final Timer timer;
+    private List<String> bootstrapURLs;
+    private Map<String, String> actQmasterHosts = new HashMap<String, String>();
+    private String activeURL;
+}
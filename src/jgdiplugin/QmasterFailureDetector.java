@@ -0,0 +1,286 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Phi accrual failure detector for qmaster.
+ *
+ * Every successful interaction with qmaster (JGDI calls, qsub, heartbeat
+ * probes, received events) counts as a heartbeat. From the distribution of the
+ * intervals between them the suspicion level phi is computed: phi = 1 means a
+ * 10% chance that qmaster is still alive, phi = 2 a 1% chance and so on.
+ * Probes are scheduled, their gaps say nothing about qmaster and are no
+ * samples. Silence is suspect only once it is overdue both for the traffic
+ * and for the next probe, so an idle cluster is not suspected. Errors
+ * which indicate that qmaster can not be contacted make qmaster suspect right
+ * away, so the heartbeat can confirm the outage within a second.
+ */
+public class QmasterFailureDetector {
+
+    public enum State {
+
+        AVAILABLE, SUSPECT, UNAVAILABLE
+    }
+
+    public interface StateListener {
+
+        void qmasterStateChanged(State oldState, State newState);
+    }
+
+    public QmasterFailureDetector(double phiThreshold) {
+        this.phiThreshold = phiThreshold;
+        intervals = new long[WINDOW_SIZE];
+        lastHeartbeat = System.currentTimeMillis();
+
+        timer = new Timer("QmasterFailureDetector", true);
+        timer.schedule(new EvaluateTask(), EVALUATE_INTERVAL_MS, EVALUATE_INTERVAL_MS);
+    }
+
+    public void addStateListener(StateListener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Records a successful interaction with qmaster.
+     *
+     * @param latencyMs duration of the request, 0 if unknown
+     */
+    public void recordSuccess(long latencyMs) {
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            long interval = now - lastHeartbeat;
+            lastHeartbeat = now;
+
+            // intervals shorter than the evaluation period carry no information
+            if (interval >= MIN_INTERVAL_MS) {
+                if (count == intervals.length) {
+                    long removed = intervals[next];
+                    sum -= removed;
+                    sumOfSquares -= (double) removed * removed;
+                } else {
+                    count++;
+                }
+                intervals[next] = interval;
+                sum += interval;
+                sumOfSquares += (double) interval * interval;
+                next = (next + 1) % intervals.length;
+            }
+
+            if (latencyMs > 0) {
+                averageLatencyMs = averageLatencyMs == 0 ? latencyMs : (averageLatencyMs * 7 + latencyMs) / 8;
+            }
+            consecutiveFailures = 0;
+        }
+
+        if (state == State.SUSPECT) {
+            setState(State.AVAILABLE);
+        }
+    }
+
+    /**
+     * Records a successful heartbeat probe. The probe resets the silence but
+     * its interval is set by the heartbeat, not by qmaster.
+     *
+     * @param latencyMs duration of the probe
+     */
+    public void recordProbe(long latencyMs) {
+        synchronized (this) {
+            lastHeartbeat = System.currentTimeMillis();
+            if (latencyMs > 0) {
+                averageLatencyMs = averageLatencyMs == 0 ? latencyMs : (averageLatencyMs * 7 + latencyMs) / 8;
+            }
+            consecutiveFailures = 0;
+        }
+
+        if (state == State.SUSPECT) {
+            setState(State.AVAILABLE);
+        }
+    }
+
+    /**
+     * Sets the time until the next heartbeat probe, when at the latest
+     * qmaster is heard from on an idle cluster.
+     */
+    public synchronized void setProbeInterval(long probeIntervalMs) {
+        this.probeIntervalMs = probeIntervalMs;
+    }
+
+    /**
+     * Records a request which failed because qmaster could not be contacted.
+     * Qmaster becomes suspect immediately.
+     */
+    public void recordFailure(String reason) {
+        synchronized (this) {
+            consecutiveFailures++;
+            lastFailureReason = reason;
+        }
+
+        if (state == State.AVAILABLE) {
+            setState(State.SUSPECT);
+        }
+    }
+
+    /**
+     * Qmaster is confirmed to be down, i.e. the heartbeat could not reach it.
+     */
+    public void markUnavailable() {
+        setState(State.UNAVAILABLE);
+    }
+
+    /**
+     * Qmaster is confirmed to be up again.
+     */
+    public void markAvailable() {
+        synchronized (this) {
+            lastHeartbeat = System.currentTimeMillis();
+            consecutiveFailures = 0;
+        }
+        setState(State.AVAILABLE);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isAvailable() {
+        return state != State.UNAVAILABLE;
+    }
+
+    /**
+     * @return the current suspicion level
+     */
+    public synchronized double phi() {
+        return phi(System.currentTimeMillis() - lastHeartbeat);
+    }
+
+    public synchronized long getAverageLatencyMs() {
+        return averageLatencyMs;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized String getLastFailureReason() {
+        return lastFailureReason;
+    }
+
+    public void shutdown() {
+        timer.cancel();
+    }
+
+    private double phi(long timeSinceLastHeartbeat) {
+        if (count < MIN_SAMPLES) {
+            return 0;
+        }
+
+        double mean = sum / count;
+        double variance = sumOfSquares / count - mean * mean;
+        double stdDeviation = Math.max(MIN_STD_DEVIATION_MS, Math.sqrt(Math.max(0, variance)));
+        double trafficPhi = phi(timeSinceLastHeartbeat, mean, stdDeviation);
+
+        if (probeIntervalMs <= 0) {
+            return trafficPhi;
+        }
+
+        // the traffic may just have stopped, the next probe is due after its interval
+        double probeMean = probeIntervalMs + averageLatencyMs;
+        double probePhi = phi(timeSinceLastHeartbeat, probeMean,
+                Math.max(MIN_STD_DEVIATION_MS, probeMean * PROBE_DEVIATION));
+        return Math.min(trafficPhi, probePhi);
+    }
+
+    private static double phi(long timeSinceLastHeartbeat, double mean, double stdDeviation) {
+        // logistic approximation of the cumulative normal distribution
+        double y = (timeSinceLastHeartbeat - mean) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+
+        if (timeSinceLastHeartbeat > mean) {
+            return -Math.log10(e / (1.0 + e));
+        } else {
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+
+    private void setState(State newState) {
+        State oldState;
+
+        synchronized (this) {
+            oldState = state;
+            if (oldState == newState) {
+                return;
+            }
+            state = newState;
+        }
+
+        if (newState != State.AVAILABLE) {
+            System.err.println(new Date() + ": Qmaster is " + newState + " (phi=" + phi()
+                    + ", failures=" + getConsecutiveFailures() + ")");
+        }
+
+        for (StateListener l : listeners) {
+            try {
+                l.qmasterStateChanged(oldState, newState);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private class EvaluateTask extends TimerTask {
+
+        @Override
+        public void run() {
+            if (state == State.AVAILABLE && phi() >= phiThreshold) {
+                setState(State.SUSPECT);
+            }
+        }
+    }
+    private static final int WINDOW_SIZE = 100;
+    private static final int MIN_SAMPLES = 3;
+    private static final long MIN_INTERVAL_MS = 250;
+    private static final double MIN_STD_DEVIATION_MS = 500;
+    private static final long EVALUATE_INTERVAL_MS = 250;
+    private static final double PROBE_DEVIATION = 0.1;
+    private final double phiThreshold;
+    private final long[] intervals;
+    private final Timer timer;
+    private final CopyOnWriteArrayList<StateListener> listeners = new CopyOnWriteArrayList<StateListener>();
+    private volatile State state = State.AVAILABLE;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private long lastHeartbeat;
+    private long averageLatencyMs;
+    private long probeIntervalMs;
+    private int consecutiveFailures;
+    private String lastFailureReason;
+}
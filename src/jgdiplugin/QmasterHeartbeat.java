@@ -0,0 +1,155 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Schedules the qmaster liveness probe with an adaptive interval. While qmaster
+ * is healthy the interval grows up to the maximum healthy interval, after a
+ * failed probe qmaster is probed every second, backing off until it is back.
+ */
+public class QmasterHeartbeat {
+
+    public QmasterHeartbeat(JGDIPlugin plugin) {
+        this.plugin = plugin;
+        timer = new Timer("QmasterHeartbeat", true);
+        interval = HEALTHY_MIN_INTERVAL_MS;
+        plugin.getFailureDetector().setProbeInterval(interval);
+        schedule(interval);
+    }
+
+    /**
+     * Probes qmaster as soon as possible, i.e. when there is a reason to
+     * believe it went down.
+     */
+    public void probeNow() {
+        schedule(0);
+    }
+
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (task != null) {
+                task.cancel();
+            }
+        }
+        timer.cancel();
+    }
+
+    private synchronized void schedule(long delay) {
+        if (shutdown) {
+            return;
+        }
+
+        if (probing) {
+            // reschedule when the running probe is done
+            if (delay == 0) {
+                probeAgain = true;
+            }
+            return;
+        }
+
+        long time = System.currentTimeMillis() + delay;
+
+        if (task != null) {
+            if (time >= nextProbeTime) {
+                return; // the next probe comes earlier anyway
+            }
+            task.cancel();
+        }
+
+        task = new ProbeTask();
+        nextProbeTime = time;
+        timer.schedule(task, delay);
+    }
+
+    private void probe() {
+        synchronized (this) {
+            task = null;
+            probing = true;
+            probeAgain = false;
+        }
+
+        boolean alive = false;
+
+        try {
+            alive = plugin.pingQmaster();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        long delay;
+
+        synchronized (this) {
+            probing = false;
+
+            if (alive) {
+                if (interval < HEALTHY_MIN_INTERVAL_MS) {
+                    interval = HEALTHY_MIN_INTERVAL_MS;
+                } else {
+                    interval = Math.min(HEALTHY_MAX_INTERVAL_MS, interval + HEALTHY_STEP_MS);
+                }
+            } else {
+                if (interval >= HEALTHY_MIN_INTERVAL_MS) {
+                    interval = DEGRADED_MIN_INTERVAL_MS;
+                } else {
+                    interval = Math.min(DEGRADED_MAX_INTERVAL_MS, interval * 2);
+                }
+            }
+
+            delay = probeAgain ? 0 : interval;
+        }
+
+        plugin.getFailureDetector().setProbeInterval(interval);
+
+        schedule(delay);
+    }
+
+    private class ProbeTask extends TimerTask {
+
+        @Override
+        public void run() {
+            probe();
+        }
+    }
+    private static final long HEALTHY_MIN_INTERVAL_MS = 15000;
+    private static final long HEALTHY_MAX_INTERVAL_MS = 60000;
+    private static final long HEALTHY_STEP_MS = 5000;
+    private static final long DEGRADED_MIN_INTERVAL_MS = 1000;
+    private static final long DEGRADED_MAX_INTERVAL_MS = 8000;
+    private final JGDIPlugin plugin;
+    private final Timer timer;
+    private TimerTask task;
+    private long nextProbeTime;
+    private long interval;
+    private boolean probing;
+    private boolean probeAgain;
+    private boolean shutdown;
+}
@@ -0,0 +1,115 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readiness signal of qmaster. The heartbeat opens it when qmaster is back, so
+ * all threads waiting for qmaster wake up at once instead of polling.
+ */
+public class QmasterReadiness {
+
+    public QmasterReadiness() {
+        latch = new CountDownLatch(0);
+        continuations = new LinkedList<Runnable>();
+    }
+
+    /**
+     * Closes the signal, following waits block until {@link #markReady()}.
+     */
+    public synchronized void markDown() {
+        if (latch.getCount() == 0) {
+            latch = new CountDownLatch(1);
+        }
+    }
+
+    /**
+     * Opens the signal, wakes up all waiting threads and runs the registered
+     * continuations on the calling thread.
+     */
+    public void markReady() {
+        List<Runnable> ready;
+
+        synchronized (this) {
+            latch.countDown();
+            if (continuations.isEmpty()) {
+                return;
+            }
+            ready = new LinkedList<Runnable>(continuations);
+            continuations.clear();
+        }
+
+        for (Runnable r : ready) {
+            try {
+                r.run();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized boolean isReady() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * Blocks until qmaster is ready.
+     */
+    public void awaitReady() throws InterruptedException {
+        currentLatch().await();
+    }
+
+    /**
+     * Blocks until qmaster is ready or the timeout elapsed.
+     *
+     * @return true if qmaster is ready
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return currentLatch().await(timeout, unit);
+    }
+
+    /**
+     * Runs the continuation once qmaster is ready, right away if it is ready
+     * now. Continuations run on the heartbeat thread and must not block.
+     */
+    public void whenReady(Runnable continuation) {
+        synchronized (this) {
+            if (latch.getCount() > 0) {
+                continuations.add(continuation);
+                return;
+            }
+        }
+        continuation.run();
+    }
+
+    private synchronized CountDownLatch currentLatch() {
+        return latch;
+    }
+    private CountDownLatch latch;
+    private final List<Runnable> continuations;
+}
@@ -0,0 +1,379 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import com.sun.grid.jgdi.JGDI;
+import com.sun.grid.jgdi.configuration.Job;
+import com.sun.grid.jgdi.configuration.JobTask;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import jgdiplugin.util.LongHashSet;
+import jgdiplugin.util.LongIntHashMap;
+import plgrid.GridJobInfo;
+import plgrid.event.EventFinished;
+import plgrid.event.EventRunning;
+
+/**
+ * Emits the job events which were missed while the plugin had no event client.
+ *
+ * When qmaster goes down the tracked tasks are remembered. After the event
+ * client is registered again, the remembered tasks are compared with one bulk
+ * job list and, for the jobs which left qmaster, with the finished job store.
+ * Only the transitions which really happened in between are published.
+ *
+ * If the job list fails, the reconciliation is retried with backoff. A job
+ * which left qmaster without an accounting record yet is looked up again
+ * until the accounting catches up; after a timeout it is reported finished
+ * with an unknown exit status, like a deleted job.
+ */
+public class QmasterReconnectReconciler {
+
+    public QmasterReconnectReconciler(JGDIPlugin plugin) {
+        this.plugin = plugin;
+        timer = new Timer("QmasterReconnectReconciler", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    retryUnresolved();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, UNRESOLVED_RETRY_MS, UNRESOLVED_RETRY_MS);
+    }
+
+    /**
+     * Remembers the tracked tasks and Pipeline's jobs at the moment the event
+     * stream was lost. Called when a qmaster crash is detected.
+     */
+    public synchronized void snapshot() {
+        if (snapshotKeys == null) {
+            long[] tasks = plugin.getTaskStateCoalescer().getTrackedTasks();
+            long[] jobs = plugin.getOwnedJobs();
+
+            // Pipeline's jobs without any task event yet are remembered with
+            // task number 0.
+            LongHashSet trackedJobs = new LongHashSet(tasks.length);
+            for (long key : tasks) {
+                trackedJobs.add(JobTaskStateCoalescer.jobIdOf(key));
+            }
+
+            long[] keys = new long[tasks.length + jobs.length];
+            System.arraycopy(tasks, 0, keys, 0, tasks.length);
+            int n = tasks.length;
+            for (long jobId : jobs) {
+                if (!trackedJobs.contains(jobId)) {
+                    keys[n++] = JobTaskStateCoalescer.key((int) jobId, 0);
+                }
+            }
+
+            snapshotKeys = new long[n];
+            System.arraycopy(keys, 0, snapshotKeys, 0, n);
+        }
+    }
+
+    /**
+     * Publishes the events missed since {@link #snapshot()}. Must be called
+     * after the event client has been registered again, so no transition can
+     * fall between the job list and the new event stream. Transitions which
+     * already came in through the new event stream are not published twice.
+     *
+     * @param jgdi the connection to use, null for a session of the pool
+     */
+    public void reconcile(JGDI jgdi) {
+        long[] keys;
+
+        synchronized (this) {
+            keys = snapshotKeys;
+            snapshotKeys = null;
+        }
+
+        if (keys == null || keys.length == 0) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        List<Job> jobs;
+        try {
+            jobs = jobList(jgdi);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            synchronized (this) {
+                if (snapshotKeys == null) {
+                    snapshotKeys = keys;
+                }
+            }
+            // qmaster is up, no reconnect would bring the keys back
+            scheduleRetry();
+            return;
+        }
+
+        synchronized (this) {
+            retryDelayMs = 0;
+        }
+
+        // job number -> 1, (job number, task number) -> state
+        LongIntHashMap activeJobs = new LongIntHashMap(jobs.size());
+        LongIntHashMap activeTasks = new LongIntHashMap(jobs.size());
+
+        for (Job j : jobs) {
+            activeJobs.put(j.getJobNumber(), 1, 0);
+
+            List<JobTask> tasks = j.getJaTasksList();
+            if (tasks != null) {
+                for (JobTask t : tasks) {
+                    activeTasks.put(JobTaskStateCoalescer.key(j.getJobNumber(), t.getTaskNumber()),
+                            JGDIJobModListener.STATE_RUNNING, 0);
+                }
+            }
+        }
+
+        JobTaskStateCoalescer coalescer = plugin.getTaskStateCoalescer();
+        int running = 0;
+        int finished = 0;
+        int waiting = 0;
+
+        for (long key : keys) {
+            int jobId = JobTaskStateCoalescer.jobIdOf(key);
+            int taskNumber = JobTaskStateCoalescer.taskNumberOf(key);
+
+            if (taskNumber == 0) {
+                if (activeJobs.containsKey(jobId)) {
+                    // tasks started during the outage
+                    long[] started = tasksOf(activeTasks, jobId);
+                    for (long taskKey : started) {
+                        int t = JobTaskStateCoalescer.taskNumberOf(taskKey);
+                        if (coalescer.stateChanged(jobId, t, JGDIJobModListener.STATE_RUNNING,
+                                new EventRunning(String.valueOf(jobId), String.valueOf(t)))) {
+                            running++;
+                        }
+                    }
+                } else if (plugin.isOwnedJob(jobId)) {
+                    if (publishFinished(jobId, 0)) {
+                        finished++;
+                    } else {
+                        awaitAccounting(key);
+                        waiting++;
+                    }
+                }
+            } else if (activeTasks.containsKey(key)) {
+                boolean changed = coalescer.stateChanged(jobId, taskNumber, JGDIJobModListener.STATE_RUNNING,
+                        new EventRunning(String.valueOf(jobId), String.valueOf(taskNumber)));
+                if (changed) {
+                    running++;
+                }
+            } else if (!activeJobs.containsKey(jobId)) {
+                if (coalescer.getState(jobId, taskNumber) == JobTaskStateCoalescer.NO_STATE) {
+                    // finished event already came in through the new event client
+                    continue;
+                }
+
+                if (publishFinished(jobId, taskNumber)) {
+                    finished++;
+                } else {
+                    awaitAccounting(key);
+                    waiting++;
+                }
+            }
+        }
+
+        System.out.println(new Date() + ": Reconciled " + keys.length + " tracked tasks after qmaster reconnect in "
+                + (System.currentTimeMillis() - startTime) + " ms: " + running + " started, " + finished
+                + " finished, " + waiting + " waiting for their accounting record.");
+    }
+
+    /**
+     * @return number of finished tasks waiting for their accounting record
+     */
+    public int getUnresolvedCount() {
+        synchronized (unresolved) {
+            return unresolved.size();
+        }
+    }
+
+    public void shutdown() {
+        timer.cancel();
+    }
+
+    private List<Job> jobList(JGDI jgdi) throws Exception {
+        if (jgdi != null) {
+            return jgdi.getJobList();
+        }
+
+        JGDISessionPool pool = plugin.getSessionPool();
+        JGDISessionPool.PooledSession session = pool.borrow();
+        boolean failed = true;
+        try {
+            List<Job> jobs = session.getJGDI().getJobList();
+            failed = false;
+            return jobs;
+        } finally {
+            pool.release(session, failed);
+        }
+    }
+
+    private void scheduleRetry() {
+        long delay;
+        synchronized (this) {
+            retryDelayMs = retryDelayMs == 0 ? MIN_RETRY_DELAY_MS : Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+            delay = retryDelayMs;
+        }
+
+        System.err.println(new Date() + ": Reconciliation failed, retrying in " + delay + " ms");
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    reconcile(null);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Publishes the finished event of the task, task number 0 for the whole
+     * job, if the accounting knows it.
+     *
+     * @return false if there is no accounting record yet
+     */
+    private boolean publishFinished(int jobId, int taskNumber) {
+        GridJobInfo fji = null;
+        try {
+            if (taskNumber > 0) {
+                fji = plugin.getFinishedJobInfo(jobId + "." + taskNumber);
+            }
+            if (fji == null || fji.getState() != GridJobInfo.STATE_FINISHED) {
+                fji = plugin.getFinishedJobInfo(String.valueOf(jobId));
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        if (fji == null || fji.getState() != GridJobInfo.STATE_FINISHED) {
+            return false;
+        }
+
+        forget(jobId, taskNumber);
+        plugin.publishEvent(new EventFinished(String.valueOf(jobId), String.valueOf(taskNumber),
+                fji.getFinishTime(), fji.getStartTime(), fji.getExitStatus()));
+        return true;
+    }
+
+    private void forget(int jobId, int taskNumber) {
+        if (taskNumber > 0) {
+            plugin.getTaskStateCoalescer().finished(jobId, taskNumber);
+        } else {
+            plugin.removeOwnedJob(jobId);
+        }
+    }
+
+    private void awaitAccounting(long key) {
+        synchronized (unresolved) {
+            if (!unresolved.containsKey(key)) {
+                unresolved.put(key, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Looks up the tasks waiting for their accounting record again. Tasks
+     * still without one after the timeout, and after the accounting file was
+     * read to its end, are reported finished with an unknown exit status.
+     */
+    private void retryUnresolved() {
+        Map<Long, Long> pending;
+        synchronized (unresolved) {
+            if (unresolved.isEmpty()) {
+                return;
+            }
+            pending = new LinkedHashMap<Long, Long>(unresolved);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Long> e : pending.entrySet()) {
+            long key = e.getKey();
+            int jobId = JobTaskStateCoalescer.jobIdOf(key);
+            int taskNumber = JobTaskStateCoalescer.taskNumberOf(key);
+
+            boolean done;
+            if (taskNumber > 0 ? plugin.getTaskStateCoalescer().getState(jobId, taskNumber) == JobTaskStateCoalescer.NO_STATE
+                    : !plugin.isOwnedJob(jobId)) {
+                // the finished event came in through the event client
+                done = true;
+            } else if (publishFinished(jobId, taskNumber)) {
+                done = true;
+            } else if (now - e.getValue() > UNRESOLVED_TIMEOUT_MS
+                    && plugin.getAccountingSyncStartTime() > e.getValue()) {
+                // the accounting file was read completely since, its record
+                // is not coming
+                System.err.println(new Date() + ": No accounting record of job " + jobId + "." + taskNumber
+                        + ", reporting it finished with unknown exit status.");
+                forget(jobId, taskNumber);
+                EventFinished evt = new EventFinished(String.valueOf(jobId), String.valueOf(taskNumber), now,
+                        UNKNOWN_EXIT_STATUS);
+                evt.setError("Job finished while the plugin was not connected to qmaster, exit status unknown");
+                plugin.publishEvent(evt);
+                done = true;
+            } else {
+                done = false;
+            }
+
+            if (done) {
+                synchronized (unresolved) {
+                    unresolved.remove(key);
+                }
+            }
+        }
+    }
+    private static long[] tasksOf(LongIntHashMap tasks, int jobId) {
+        long[] keys = tasks.keys();
+        int n = 0;
+        for (long key : keys) {
+            if (JobTaskStateCoalescer.jobIdOf(key) == jobId) {
+                keys[n++] = key;
+            }
+        }
+        long[] ret = new long[n];
+        System.arraycopy(keys, 0, ret, 0, n);
+        return ret;
+    }
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+    private static final long UNRESOLVED_RETRY_MS = 15000;
+    private static final long UNRESOLVED_TIMEOUT_MS = 2 * 60 * 1000;
+    private static final int UNKNOWN_EXIT_STATUS = -88;
+    private final JGDIPlugin plugin;
+    private final Timer timer;
+    private final Map<Long, Long> unresolved = new LinkedHashMap<Long, Long>();
+    private long[] snapshotKeys;
+    private long retryDelayMs;
+}
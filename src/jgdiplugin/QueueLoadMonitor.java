@@ -0,0 +1,214 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import com.sun.grid.jgdi.JGDIException;
+import com.sun.grid.jgdi.monitoring.ClusterQueueSummary;
+import com.sun.grid.jgdi.monitoring.ClusterQueueSummaryOptions;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Periodically refreshed view of the load and free slots of the cluster
+ * queues. The refresh runs on its own timer over a pooled JGDI session, the
+ * submissions only read the last snapshot.
+ */
+public class QueueLoadMonitor {
+
+    /**
+     * Load of one cluster queue at the time of the snapshot.
+     */
+    public static class QueueLoad {
+
+        private final String name;
+        private final double load;
+        private final int availableSlots;
+        private final int usedSlots;
+        private final int totalSlots;
+        private final boolean usable;
+
+        private QueueLoad(ClusterQueueSummary cqs) {
+            name = cqs.getName();
+            load = cqs.isLoadSet() ? cqs.getLoad() : 0;
+            availableSlots = cqs.getAvailableSlots();
+            usedSlots = cqs.getUsedSlots();
+            totalSlots = cqs.getTotalSlots();
+
+            // queue instances which can not take jobs
+            int unusable = cqs.getDisabledManual() + cqs.getDisabledByCalendar() + cqs.getSuspendManual()
+                    + cqs.getError() + cqs.getUnknown();
+            usable = availableSlots > 0 && unusable < totalSlots;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getLoad() {
+            return load;
+        }
+
+        public int getAvailableSlots() {
+            return availableSlots;
+        }
+
+        public int getUsedSlots() {
+            return usedSlots;
+        }
+
+        public int getTotalSlots() {
+            return totalSlots;
+        }
+
+        /**
+         * @return true if the queue has free slots which can take jobs
+         */
+        public boolean isUsable() {
+            return usable;
+        }
+    }
+
+    public QueueLoadMonitor(JGDIPlugin plugin, long refreshIntervalMs) {
+        this.plugin = plugin;
+        this.refreshIntervalMs = refreshIntervalMs;
+        timer = new Timer("QueueLoadMonitor", true);
+        timer.schedule(new RefreshTask(), 0, refreshIntervalMs);
+    }
+
+    /**
+     * @return the queues of the last snapshot, empty if there is no recent
+     * one
+     */
+    public Map<String, QueueLoad> getQueueLoads() {
+        if (System.currentTimeMillis() - snapshotTime > refreshIntervalMs * MAX_AGE_INTERVALS) {
+            return Collections.emptyMap();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Picks the candidate with the most free slots, the lower load on a tie,
+     * and takes one of its slots. The snapshot does not show the jobs hinted
+     * since it was taken, so their slots are subtracted until the snapshot
+     * after the next one, by when the scheduler has placed them. A burst of
+     * submissions thereby fills the free slots of all candidates instead of
+     * going to the same queue.
+     *
+     * @return the queue name, null if no candidate has free slots left or
+     * the snapshot is outdated
+     */
+    public synchronized String leastLoaded(Collection<String> candidates) {
+        Map<String, QueueLoad> loads = getQueueLoads();
+        QueueLoad best = null;
+        int bestFree = 0;
+
+        for (String name : candidates) {
+            QueueLoad q = loads.get(name);
+            if (q == null || !q.isUsable()) {
+                continue;
+            }
+            int free = q.availableSlots - hinted(name);
+            if (free > bestFree || (best != null && free == bestFree && q.load < best.load)) {
+                best = q;
+                bestFree = free;
+            }
+        }
+
+        if (best == null) {
+            return null;
+        }
+        Integer n = hintedSinceSnapshot.get(best.name);
+        hintedSinceSnapshot.put(best.name, n == null ? 1 : n + 1);
+        return best.name;
+    }
+
+    private int hinted(String queue) {
+        Integer current = hintedSinceSnapshot.get(queue);
+        Integer previous = hintedBeforeSnapshot.get(queue);
+        return (current != null ? current : 0) + (previous != null ? previous : 0);
+    }
+
+    public long getSnapshotTime() {
+        return snapshotTime;
+    }
+
+    public void shutdown() {
+        timer.cancel();
+    }
+
+    private void refresh() {
+        JGDISessionPool pool = plugin.getSessionPool();
+        JGDISessionPool.PooledSession session = null;
+        boolean failed = false;
+
+        try {
+            session = pool.borrow();
+            List<ClusterQueueSummary> summaries = session.getJGDI().getClusterQueueSummary(
+                    new ClusterQueueSummaryOptions());
+
+            Map<String, QueueLoad> loads = new HashMap<String, QueueLoad>();
+            for (ClusterQueueSummary cqs : summaries) {
+                loads.put(cqs.getName(), new QueueLoad(cqs));
+            }
+
+            synchronized (this) {
+                snapshot = Collections.unmodifiableMap(loads);
+                snapshotTime = System.currentTimeMillis();
+                hintedBeforeSnapshot = hintedSinceSnapshot;
+                hintedSinceSnapshot = new HashMap<String, Integer>();
+            }
+        } catch (JGDIException ex) {
+            // qmaster is down, the snapshot gets outdated and no hints are given
+            failed = true;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            if (session != null) {
+                pool.release(session, failed);
+            }
+        }
+    }
+
+    private class RefreshTask extends TimerTask {
+
+        @Override
+        public void run() {
+            refresh();
+        }
+    }
+    private static final int MAX_AGE_INTERVALS = 3;
+    private final JGDIPlugin plugin;
+    private final long refreshIntervalMs;
+    private final Timer timer;
+    private volatile Map<String, QueueLoad> snapshot = Collections.emptyMap();
+    private volatile long snapshotTime;
+    // queue -> jobs hinted to it since the last and before the last snapshot
+    private Map<String, Integer> hintedSinceSnapshot = new HashMap<String, Integer>();
+    private Map<String, Integer> hintedBeforeSnapshot = new HashMap<String, Integer>();
+}
@@ -0,0 +1,108 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Timings of the startup phases of the plugin. Phases run on different
+ * threads, so the report shows which thread ran each of them and the wall
+ * time of the whole startup.
+ */
+public class StartupReport {
+
+    public StartupReport() {
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return start time of a phase, to be passed to
+     * {@link #end(String, long)}
+     */
+    public long begin() {
+        return System.currentTimeMillis();
+    }
+
+    public synchronized void end(String phase, long begin) {
+        long now = System.currentTimeMillis();
+        phases.add(new Phase(phase, begin - startTime, now - begin, Thread.currentThread().getName()));
+    }
+
+    /**
+     * @return the callable, timed as the given phase
+     */
+    public <T> Callable<T> timed(final String phase, final Callable<T> callable) {
+        return new Callable<T>() {
+            public T call() throws Exception {
+                long begin = begin();
+                try {
+                    return callable.call();
+                } finally {
+                    end(phase, begin);
+                }
+            }
+        };
+    }
+
+    /**
+     * Marks the end of the startup.
+     */
+    public synchronized void finished() {
+        totalMs = System.currentTimeMillis() - startTime;
+    }
+
+    public synchronized long getTotalMs() {
+        return totalMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Startup took " + totalMs + " ms:");
+        for (Phase p : phases) {
+            sb.append("\n  ").append(p.name).append(": ").append(p.durationMs).append(" ms (at +")
+                    .append(p.offsetMs).append(" ms on ").append(p.thread).append(")");
+        }
+        return sb.toString();
+    }
+
+    private static class Phase {
+
+        private final String name;
+        private final long offsetMs;
+        private final long durationMs;
+        private final String thread;
+
+        Phase(String name, long offsetMs, long durationMs, String thread) {
+            this.name = name;
+            this.offsetMs = offsetMs;
+            this.durationMs = durationMs;
+            this.thread = thread;
+        }
+    }
+    private final long startTime;
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private long totalMs;
+}
@@ -0,0 +1,352 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import com.sun.grid.jgdi.configuration.Job;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Write-ahead journal of job submissions.
+ *
+ * Before qsub runs, the intent is logged and forced to disk with a token which
+ * is passed to qsub as the job context variable PL_SUBMIT_TOKEN. When qsub
+ * returns, the outcome is logged. Intents without an outcome are the
+ * submissions the plugin died in. After a restart they are matched against the
+ * context of the jobs in one job list: a matched submission is known to exist,
+ * and when Pipeline submits the same job again it gets the existing job id
+ * instead of a duplicate job.
+ *
+ * Line format: "I token hash" for an intent, "O token jobId" for an outcome,
+ * with "-" as job id for a failed submission.
+ */
+public class SubmissionJournal {
+
+    public static final String TOKEN_CONTEXT_VARIABLE = "PL_SUBMIT_TOKEN";
+
+    public SubmissionJournal(File file) throws IOException {
+        this.file = file;
+        tokenPrefix = Long.toHexString(System.currentTimeMillis());
+
+        if (file.exists()) {
+            read();
+        }
+        compact();
+    }
+
+    /**
+     * @return intents of the previous run without an outcome, token mapped to
+     * content hash
+     */
+    public synchronized Map<String, String> getPendingIntents() {
+        return new LinkedHashMap<String, String>(recoveredIntents);
+    }
+
+    /**
+     * Matches the intents of the previous run without an outcome against the
+     * context of the given jobs.
+     *
+     * @return the ids of the jobs which were submitted by these intents
+     */
+    public synchronized List<Integer> recover(List<Job> jobs) throws IOException {
+        List<Integer> recovered = new ArrayList<Integer>();
+        if (recoveredIntents.isEmpty()) {
+            return recovered;
+        }
+
+        Map<String, Integer> jobsByToken = new HashMap<String, Integer>();
+        for (Job j : jobs) {
+            String token = j.isSetContext() ? j.getContext(TOKEN_CONTEXT_VARIABLE) : null;
+            if (token != null) {
+                jobsByToken.put(token, j.getJobNumber());
+            }
+        }
+
+        int lost = 0;
+        for (Map.Entry<String, String> e : recoveredIntents.entrySet()) {
+            Integer jobId = jobsByToken.get(e.getKey());
+            if (jobId != null) {
+                LinkedList<String> ids = recoveredJobs.get(e.getValue());
+                if (ids == null) {
+                    ids = new LinkedList<String>();
+                    recoveredJobs.put(e.getValue(), ids);
+                }
+                ids.add(String.valueOf(jobId));
+                recovered.add(jobId);
+                append("O " + e.getKey() + " " + jobId);
+            } else {
+                // never reached qmaster, or already finished
+                lost++;
+                append("O " + e.getKey() + " -");
+            }
+        }
+        recoveredIntents.clear();
+        recoveryTime = System.currentTimeMillis();
+
+        System.out.println("Recovered " + recovered.size() + " submissions which were in flight during the last "
+                + "shutdown, " + lost + " submissions were not found in qmaster.");
+
+        return recovered;
+    }
+
+    /**
+     * Hands out a job which was submitted before the restart with the same
+     * content, so it is not submitted again. Pipeline resubmits the jobs of
+     * its restored workflows right after a restart; a job with the same
+     * content submitted later on is a new job, so the recovered jobs can only
+     * be claimed for a while after the recovery.
+     *
+     * @return the job id, null if there is no such job
+     */
+    public synchronized String claimRecovered(String contentHash) {
+        if (recoveredJobs.isEmpty()) {
+            return null;
+        }
+        if (System.currentTimeMillis() - recoveryTime > CLAIM_WINDOW_MS) {
+            System.out.println(new Date() + ": " + recoveredJobs.size()
+                    + " recovered submissions were not claimed by Pipeline after the restart.");
+            recoveredJobs.clear();
+            return null;
+        }
+
+        LinkedList<String> ids = recoveredJobs.get(contentHash);
+        if (ids == null) {
+            return null;
+        }
+        String jobId = ids.removeFirst();
+        if (ids.isEmpty()) {
+            recoveredJobs.remove(contentHash);
+        }
+        return jobId;
+    }
+
+    /**
+     * Logs the intent to submit a job and forces it to disk. The disk is
+     * forced outside the journal lock, one force covers all the intents
+     * logged concurrently.
+     *
+     * @return the token of the submission
+     */
+    public String begin(String contentHash) throws IOException {
+        String token;
+        long count;
+        synchronized (this) {
+            token = tokenPrefix + "-" + Long.toHexString(++tokenCounter);
+            append("I " + token + " " + contentHash);
+            pending.put(token, contentHash);
+            count = ++appendedCount;
+        }
+
+        force(count);
+        return token;
+    }
+
+    /**
+     * Forces the journal to disk up to the given line, unless a force by
+     * another thread or a compaction covered it already.
+     */
+    private void force(long count) throws IOException {
+        synchronized (forceLock) {
+            long upTo;
+            FileOutputStream o;
+            synchronized (this) {
+                if (durableCount >= count) {
+                    return;
+                }
+                upTo = appendedCount;
+                o = out;
+            }
+
+            try {
+                o.getChannel().force(false);
+            } catch (ClosedChannelException ex) {
+                // compacted meanwhile, the compacted journal is forced
+                synchronized (this) {
+                    if (durableCount >= count) {
+                        return;
+                    }
+                }
+                throw ex;
+            }
+
+            synchronized (this) {
+                durableCount = Math.max(durableCount, upTo);
+            }
+        }
+    }
+
+    /**
+     * Logs the outcome of a submission.
+     *
+     * @param jobId the job id, null if the submission failed
+     */
+    public synchronized void completed(String token, String jobId) {
+        if (pending.remove(token) == null) {
+            return;
+        }
+
+        try {
+            // no need to force, an outcome lost in a crash is recovered
+            append("O " + token + " " + (jobId != null ? jobId : "-"));
+            if (++resolvedCount >= COMPACT_THRESHOLD) {
+                compact();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * @return hash of the command line and environment of a submission
+     */
+    public static String contentHash(List<String> command, Map<String, String> env) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (String s : command) {
+                md.update(s.getBytes(UTF8));
+                md.update((byte) 0);
+            }
+            if (env != null) {
+                // sorted, so the order of the map does not matter
+                for (Map.Entry<String, String> e : new TreeMap<String, String>(env).entrySet()) {
+                    md.update(e.getKey().getBytes(UTF8));
+                    md.update((byte) '=');
+                    md.update(String.valueOf(e.getValue()).getBytes(UTF8));
+                    md.update((byte) 0);
+                }
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void read() throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] f = line.split(" ");
+                if (f.length != 3) {
+                    continue; // torn write of the last line
+                }
+                if (f[0].equals("I")) {
+                    recoveredIntents.put(f[1], f[2]);
+                } else if (f[0].equals("O")) {
+                    recoveredIntents.remove(f[1]);
+                }
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    /**
+     * Rewrites the journal with the intents without an outcome only.
+     */
+    private void compact() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> e : recoveredIntents.entrySet()) {
+                sb.append("I ").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            for (Map.Entry<String, String> e : pending.entrySet()) {
+                sb.append("I ").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            fos.write(sb.toString().getBytes(UTF8));
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+
+        out = new FileOutputStream(file, true);
+        resolvedCount = 0;
+        durableCount = appendedCount;
+    }
+
+    private void append(String line) throws IOException {
+        out.write((line + "\n").getBytes(UTF8));
+    }
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int COMPACT_THRESHOLD = 10000;
+    private static final long CLAIM_WINDOW_MS = 10 * 60 * 1000;
+    private final File file;
+    private final String tokenPrefix;
+    private final Map<String, String> pending = new LinkedHashMap<String, String>();
+    private final Map<String, String> recoveredIntents = new LinkedHashMap<String, String>();
+    private final Map<String, LinkedList<String>> recoveredJobs = new HashMap<String, LinkedList<String>>();
+    private FileOutputStream out;
+    private long tokenCounter;
+    private int resolvedCount;
+    private long recoveryTime;
+    private final Object forceLock = new Object();
+    private long appendedCount;
+    private long durableCount;
+}
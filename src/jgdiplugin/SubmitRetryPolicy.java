@@ -0,0 +1,214 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether and when a failed job submission is retried.
+ *
+ * Errors are classified by the output of qsub. Permanent errors, i.e. invalid
+ * options or missing permissions, are not retried. Connectivity errors are
+ * retried until the deadline, overload errors a few times. The delays follow
+ * decorrelated jitter, each delay is drawn between the base delay and three
+ * times the previous delay, so clients failing together do not retry
+ * together.
+ */
+public class SubmitRetryPolicy {
+
+    public enum ErrorClass {
+
+        /**
+         * Qmaster can not be contacted.
+         */
+        TRANSIENT_CONNECTIVITY(1000, 15000, Integer.MAX_VALUE),
+        /**
+         * Qmaster or the submit host is out of resources, or the error is
+         * unknown.
+         */
+        OVERLOAD(2000, 30000, 5),
+        /**
+         * The submission itself is wrong, retrying does not help.
+         */
+        PERMANENT(0, 0, 1);
+
+        private ErrorClass(long baseDelayMs, long maxDelayMs, int maxAttempts) {
+            this.baseDelayMs = baseDelayMs;
+            this.maxDelayMs = maxDelayMs;
+            this.maxAttempts = maxAttempts;
+        }
+        private final long baseDelayMs;
+        private final long maxDelayMs;
+        private final int maxAttempts;
+    }
+
+    public SubmitRetryPolicy(long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Classifies the error output of a failed qsub.
+     */
+    public static ErrorClass classify(String error) {
+        if (error == null) {
+            return ErrorClass.OVERLOAD;
+        }
+        String e = error.toLowerCase();
+
+        for (String marker : CONNECTIVITY_ERRORS) {
+            if (e.contains(marker)) {
+                return ErrorClass.TRANSIENT_CONNECTIVITY;
+            }
+        }
+        for (String marker : PERMANENT_ERRORS) {
+            if (e.contains(marker)) {
+                return ErrorClass.PERMANENT;
+            }
+        }
+        return ErrorClass.OVERLOAD;
+    }
+
+    /**
+     * Starts the attempts of one submission.
+     */
+    public Attempts begin() {
+        submissions.incrementAndGet();
+        return new Attempts(System.currentTimeMillis() + deadlineMs);
+    }
+
+    public void setDeadlineMs(long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+    }
+
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    public long getSubmissionCount() {
+        return submissions.get();
+    }
+
+    public long getSuccessCount() {
+        return successes.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getGiveUpCount() {
+        return giveUps.get();
+    }
+
+    public long getFailureCount(ErrorClass c) {
+        return failures[c.ordinal()].get();
+    }
+
+    /**
+     * @return the sum of all retry delays
+     */
+    public long getTotalBackoffMs() {
+        return backoffMs.get();
+    }
+
+    /**
+     * The attempts of one submission.
+     */
+    public class Attempts {
+
+        private Attempts(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return the number of the current attempt, starting with 1
+         */
+        public int getAttempt() {
+            return attempt;
+        }
+
+        public long getRemainingMs() {
+            return Math.max(0, deadline - System.currentTimeMillis());
+        }
+
+        /**
+         * Records a failed attempt.
+         *
+         * @return the delay before the next attempt, or -1 if the submission
+         * fails for good
+         */
+        public long failed(ErrorClass c) {
+            failures[c.ordinal()].incrementAndGet();
+            int n = ++classAttempts[c.ordinal()];
+
+            long remaining = getRemainingMs();
+            if (n >= c.maxAttempts || remaining <= 0) {
+                giveUps.incrementAndGet();
+                return -1;
+            }
+
+            long prev = previousDelay[c.ordinal()];
+            if (prev < c.baseDelayMs) {
+                prev = c.baseDelayMs;
+            }
+            long upper = Math.min(c.maxDelayMs, prev * 3);
+            long delay = c.baseDelayMs + (long) (ThreadLocalRandom.current().nextDouble() * (upper - c.baseDelayMs));
+            previousDelay[c.ordinal()] = delay;
+
+            delay = Math.min(delay, remaining);
+            attempt++;
+            retries.incrementAndGet();
+            backoffMs.addAndGet(delay);
+            return delay;
+        }
+
+        public void succeeded() {
+            successes.incrementAndGet();
+        }
+        private final long deadline;
+        private final int[] classAttempts = new int[ErrorClass.values().length];
+        private final long[] previousDelay = new long[ErrorClass.values().length];
+        private int attempt = 1;
+    }
+    private static final String[] CONNECTIVITY_ERRORS = {
+        "can't connect to service", "got read error", "unable to contact qmaster", "failed receiving gdi request",
+        "commlib error", "unable to send message to qmaster", "did not finish within"
+    };
+    private static final String[] PERMANENT_ERRORS = {
+        "invalid option", "unknown option", "unknown resource", "unknown queue", "unknown project",
+        "permission denied", "has no permission", "not allowed to submit", "unable to read script file",
+        "no such file", "failed to get", "is not a submit host", "unknown user", "sudo:"
+    };
+    private volatile long deadlineMs;
+    private final AtomicLong submissions = new AtomicLong();
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong giveUps = new AtomicLong();
+    private final AtomicLong backoffMs = new AtomicLong();
+    private final AtomicLong[] failures = new AtomicLong[ErrorClass.values().length];
+}
@@ -25,6 +25,8 @@ package jgdiplugin.accounting;
 
 import java.io.*;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
 import java.text.NumberFormat;
 import java.util.Date;
@@ -64,9 +66,19 @@ public class SGEAccountingThread extends Thread {
     private String databaseURL;
     private String dbUsername;
     private String dbPassword;
+    private volatile long position;
+    private volatile String fileKey;
+    private long startPosition;
+    private String startFileKey;
+    private volatile boolean initialized;
+    private final Object initLock = new Object();
+    private volatile long lastSyncStartTime;
+    // kept by the tailer while the database is not open
+    private volatile long lastSyncTime;
+    private volatile long lastSyncFileSize;
 
     public SGEAccountingThread(String sge_root, String sge_cell) {
-        semaphore = new Semaphore(1, true);
+        semaphore = new Semaphore(0, true);
         availableConnections = new LinkedList<Connection>();
         allConnections = new CopyOnWriteArraySet<Connection>();
 
@@ -88,6 +100,30 @@ public class SGEAccountingThread extends Thread {
         databaseURL = "jdbc:hsqldb:" + database;
         dbUsername = "sa";
         dbPassword = "";
+    }
+
+    /**
+     * Opens the database on the first finished job lookup instead of in the
+     * constructor, so the driver load and the table setup do not delay the
+     * plugin's startup. The lookup runs on the caller's thread. The tailer
+     * does not open it, it keeps its sync state in memory until then.
+     */
+    private void ensureInitialized() {
+        if (initialized) {
+            return;
+        }
+
+        synchronized (initLock) {
+            if (initialized) {
+                return;
+            }
+            initialize();
+            initialized = true;
+        }
+    }
+
+    private void initialize() {
+        long start = System.currentTimeMillis();
 
         Connection conn = null;
 
@@ -140,6 +176,9 @@ public class SGEAccountingThread extends Thread {
 
         allConnections.add(conn);
         availableConnections.add(conn);
+        semaphore.release();
+
+        System.out.println("SGE Accounting: Database opened in " + (System.currentTimeMillis() - start) + " ms");
 
         Thread t = new Thread() {
             @Override
@@ -164,6 +203,8 @@ public class SGEAccountingThread extends Thread {
     }
 
     private Connection acquireConnection() {
+        ensureInitialized();
+
         Connection conn = null;
         try {
             semaphore.acquire();
@@ -253,6 +294,10 @@ public class SGEAccountingThread extends Thread {
     }
 
     private long getLastSyncTime() {
+        if (!initialized) {
+            return lastSyncTime;
+        }
+
         StringBuilder sb = new StringBuilder("SELECT ");
         sb.append(LAST_SYNC_TIME_COLUMN);
         sb.append(" FROM ");
@@ -273,6 +318,10 @@ public class SGEAccountingThread extends Thread {
     }
 
     private long getLastSyncFileSize() {
+        if (!initialized) {
+            return lastSyncFileSize;
+        }
+
         StringBuilder sb = new StringBuilder("SELECT ");
         sb.append(LAST_SYNC_FILESIZE_COLUMN);
         sb.append(" FROM ");
@@ -293,6 +342,11 @@ public class SGEAccountingThread extends Thread {
     }
 
     private void updateLastSyncTime() {
+        lastSyncTime = System.currentTimeMillis();
+        if (!initialized) {
+            return;
+        }
+
         StringBuilder sb = new StringBuilder("UPDATE ");
         sb.append(PARAMETERS_TABLE);
 
@@ -300,12 +354,17 @@ public class SGEAccountingThread extends Thread {
 
         sb.append(LAST_SYNC_TIME_COLUMN);
         sb.append("=");
-        sb.append(System.currentTimeMillis());
+        sb.append(lastSyncTime);
 
         executeUpdate(sb.toString());
     }
 
     private void updateLastSyncFileSize(long filesize) {
+        lastSyncFileSize = filesize;
+        if (!initialized) {
+            return;
+        }
+
         StringBuilder sb = new StringBuilder("UPDATE ");
         sb.append(PARAMETERS_TABLE);
 
@@ -318,10 +377,65 @@ public class SGEAccountingThread extends Thread {
         executeUpdate(sb.toString());
     }
 
+    /**
+     * Continues reading the accounting file at the given position instead of
+     * the beginning, if it is still the same file. Must be called before the
+     * thread is started.
+     *
+     * @param fileKey identity of the file the position belongs to, see
+     * {@link #fileKey(File)}
+     */
+    public void setStartPosition(String fileKey, long position) {
+        this.startFileKey = fileKey;
+        this.startPosition = position;
+
+        // reported until the file has been opened
+        this.fileKey = fileKey;
+        this.position = position;
+    }
+
+    /**
+     * @return position after the last line read from the accounting file
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the start time of the last complete pass over the accounting
+     * file, 0 before the first one; records written before it are in the
+     * database
+     */
+    public long getLastSyncStartTime() {
+        return lastSyncStartTime;
+    }
+
+    /**
+     * @return identity of the accounting file being read
+     */
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * @return identity of the file which changes when the file is rotated, or
+     * null if the file system does not provide one
+     */
+    public static String fileKey(File f) {
+        try {
+            Object key = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+            return key != null ? key.toString() : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
     @Override
     public void run() {
         do {
+            long syncStart = System.currentTimeMillis();
             parseFile(filepath, true, true);
+            lastSyncStartTime = syncStart;
             
             if (shutdown) {
                 for (Connection conn : allConnections) {
@@ -494,6 +608,22 @@ public class SGEAccountingThread extends Thread {
         try {
             FileInputStream fis = new FileInputStream(f);
 
+            // only the live file is tracked, not the rotated one
+            boolean track = updateDB && continious;
+            long pos = 0;
+
+            if (track) {
+                String key = fileKey(f);
+                if (key != null && key.equals(startFileKey) && startPosition <= f.length()) {
+                    fis.getChannel().position(startPosition);
+                    pos = startPosition;
+                    System.out.println("SGE Accounting: Continuing at byte " + pos + " of " + filePath);
+                }
+                startFileKey = null;
+                fileKey = key;
+                position = pos;
+            }
+
             final InputStreamReader isr = new InputStreamReader(fis);
 
             final BufferedReader br = new BufferedReader(isr);
@@ -549,6 +679,11 @@ public class SGEAccountingThread extends Thread {
                     continue;
                 }
 
+                if (track) {
+                    pos += response.getBytes().length + 1;
+                    position = pos;
+                }
+
                 FinishedJobRecord r = new FinishedJobRecord(response);
 
 //                if (log) {
@@ -625,6 +760,10 @@ public class SGEAccountingThread extends Thread {
     }
 
     private int cleanup(long cutOffTime) {
+        if (!initialized) {
+            return 0; // nothing to sweep before the database is open
+        }
+
         StringBuilder sb = new StringBuilder("DELETE FROM ");
         sb.append(FINISHED_JOBS_TABLE);
         sb.append(" WHERE ");
@@ -0,0 +1,520 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import plgrid.GridJobArgument;
+import plgrid.GridJobInfo;
+import plgrid.GridJobSubmitInfo;
+import plgrid.event.EventFinished;
+import plgrid.event.EventQueued;
+import plgrid.event.EventRunning;
+import plgrid.event.GridEvent;
+
+/**
+ * Binary protocol between the job state daemon and its clients.
+ *
+ * Every message is a frame: int length of the rest, byte type, payload.
+ * Requests and their results start with a long request id, so a client can
+ * have many requests in flight on one connection. Strings are written as a
+ * boolean null flag, an int length and UTF-8, so they are not limited to the
+ * 64 KB of modified UTF-8. A submission carries a key after the
+ * request id, unique per client and submission.
+ *
+ * The daemon listens on a Unix domain socket, which needs Java 16 or later,
+ * or on a loopback TCP port given as "tcp:port".
+ *
+ * Trust model: whoever can connect can submit and delete jobs as any user the
+ * daemon may sudo to. The Unix socket is therefore only accessible by the
+ * user of the daemon: it is created with mode 0600 in a directory which must
+ * belong to that user and have mode 0700. A TCP port is open to all local
+ * users, so in TCP mode a client must first send an AUTH frame with the
+ * shared secret from a file only the user can read; the daemon refuses to
+ * listen on TCP without one. The secret is sent in clear, over loopback only.
+ */
+public final class DaemonProtocol {
+
+    public static final byte SUBMIT = 1;
+    public static final byte KILL = 2;
+    public static final byte JOB_INFO = 3;
+    public static final byte JOB_LIST = 4;
+    public static final byte SUBSCRIBE = 5;
+    public static final byte AUTH = 6;
+    public static final byte RESULT_STRING = 65;
+    public static final byte RESULT_OK = 66;
+    public static final byte RESULT_JOB_INFO = 67;
+    public static final byte RESULT_JOB_LIST = 68;
+    public static final byte RESULT_ERROR = 69;
+    public static final byte EVENT = 96;
+    public static final String DEFAULT_ADDRESS = new File(new File(System.getProperty("java.io.tmpdir"),
+            "jgdiplugin-" + System.getProperty("user.name")), "daemon.sock").getPath();
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    private static final byte EVENT_QUEUED = 0;
+    private static final byte EVENT_RUNNING = 1;
+    private static final byte EVENT_FINISHED = 2;
+
+    private DaemonProtocol() {
+    }
+
+    /**
+     * Opens the listening socket of the daemon. A stale socket file is
+     * removed, a new one is only accessible by the user, see the trust model
+     * above.
+     *
+     * @throws IOException if a daemon is listening on the socket already
+     */
+    public static ServerSocketChannel listen(String address) throws IOException {
+        if (address.startsWith("tcp:")) {
+            ServerSocketChannel ch = ServerSocketChannel.open();
+            ch.bind(new InetSocketAddress("127.0.0.1", Integer.parseInt(address.substring(4))));
+            return ch;
+        }
+
+        File socket = new File(address).getAbsoluteFile();
+        File dir = socket.getParentFile();
+        if (!dir.exists()) {
+            Files.createDirectories(dir.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        }
+        checkPrivate(dir.toPath());
+
+        if (socket.exists()) {
+            if (isListening(socket.getPath())) {
+                throw new IOException("A job state daemon is listening on " + socket + " already");
+            }
+            // left behind by a daemon which did not shut down
+            socket.delete();
+        }
+        ServerSocketChannel ch;
+        try {
+            ch = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, unixFamily());
+        } catch (Exception ex) {
+            throw unsupported(ex);
+        }
+        ch.bind(unixAddress(socket.getPath()));
+        Files.setPosixFilePermissions(socket.toPath(), PosixFilePermissions.fromString("rw-------"));
+        return ch;
+    }
+
+    /**
+     * Connects to the daemon. The directory of a Unix socket must be private
+     * to the user, so no other user can put a daemon of theirs there.
+     */
+    public static SocketChannel connect(String address) throws IOException {
+        if (address.startsWith("tcp:")) {
+            return SocketChannel.open(new InetSocketAddress("127.0.0.1", Integer.parseInt(address.substring(4))));
+        }
+        checkPrivate(new File(address).getAbsoluteFile().getParentFile().toPath());
+
+        SocketChannel ch;
+        try {
+            ch = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, unixFamily());
+        } catch (Exception ex) {
+            throw unsupported(ex);
+        }
+        try {
+            ch.connect(unixAddress(address));
+        } catch (IOException ex) {
+            ch.close();
+            throw ex;
+        }
+        return ch;
+    }
+
+    private static boolean isListening(String socket) {
+        try {
+            connect(socket).close();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the shared secret of TCP mode.
+     *
+     * @throws IOException if the file can be read by other users
+     */
+    public static byte[] readSecret(String file) throws IOException {
+        Path path = new File(file).toPath();
+        Set<PosixFilePermission> perms = Files.getPosixFilePermissions(path);
+        for (PosixFilePermission p : perms) {
+            if (p != PosixFilePermission.OWNER_READ && p != PosixFilePermission.OWNER_WRITE) {
+                throw new IOException("The secret file " + file + " must only be readable by its owner (mode 0600)");
+            }
+        }
+        byte[] secret = new String(Files.readAllBytes(path), "UTF-8").trim().getBytes("UTF-8");
+        if (secret.length == 0) {
+            throw new IOException("The secret file " + file + " is empty");
+        }
+        return secret;
+    }
+
+    /**
+     * Compares the secrets in constant time.
+     */
+    public static boolean secretMatches(byte[] expected, byte[] actual) {
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    private static void checkPrivate(Path dir) throws IOException {
+        String owner = Files.getOwner(dir).getName();
+        if (!owner.equals(System.getProperty("user.name"))) {
+            throw new IOException("The socket directory " + dir + " belongs to " + owner + ", not to this user");
+        }
+        for (PosixFilePermission p : Files.getPosixFilePermissions(dir)) {
+            if (p.name().startsWith("GROUP") || p.name().startsWith("OTHERS")) {
+                throw new IOException("The socket directory " + dir + " must only be accessible by its owner (mode 0700)");
+            }
+        }
+    }
+
+    /**
+     * Reads a frame, the type followed by the payload.
+     */
+    public static DataInputStream readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return new DataInputStream(new java.io.ByteArrayInputStream(frame));
+    }
+
+    /**
+     * Frame under construction, written with {@link #writeTo(DataOutputStream)}.
+     */
+    public static class Frame extends DataOutputStream {
+
+        public Frame(byte type) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeByte(type);
+        }
+
+        /**
+         * Writes the frame, callers synchronize on the stream.
+         */
+        public void writeTo(DataOutputStream out) throws IOException {
+            ByteArrayOutputStream b = (ByteArrayOutputStream) this.out;
+            out.writeInt(b.size());
+            b.writeTo(out);
+        }
+    }
+
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            byte[] b = s.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int length = in.readInt();
+        // the frame is in memory, a string can not be longer
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    public static void writeSubmitInfo(DataOutputStream out, GridJobSubmitInfo gji) throws IOException {
+        writeString(out, gji.getUsername());
+        writeString(out, gji.getCommand());
+        writeString(out, gji.getNativeSpecification());
+        writeString(out, gji.getOutputPath());
+        writeString(out, gji.getErrorPath());
+        out.writeInt(gji.getSubmissionType());
+        out.writeInt(gji.getBeginIndex());
+        out.writeInt(gji.getEndIndex());
+        out.writeInt(gji.getNumJobs());
+        out.writeBoolean(gji.getPrivilegeEscalation());
+
+        Properties env = gji.getEnvironmentProperties();
+        out.writeInt(env != null ? env.size() : -1);
+        if (env != null) {
+            for (String name : env.stringPropertyNames()) {
+                writeString(out, name);
+                writeString(out, env.getProperty(name));
+            }
+        }
+
+        List<GridJobArgument> args = gji.getArguments();
+        out.writeInt(args != null ? args.size() : -1);
+        if (args != null) {
+            for (GridJobArgument arg : args) {
+                writeString(out, arg != null ? arg.getValue() : null);
+                writeString(out, arg != null ? arg.getType() : null);
+            }
+        }
+    }
+
+    public static GridJobSubmitInfo readSubmitInfo(DataInputStream in) throws IOException {
+        GridJobSubmitInfo gji = new GridJobSubmitInfo();
+        gji.setUsername(readString(in));
+        gji.setCommand(readString(in));
+        gji.setNativeSpecification(readString(in));
+        gji.setOutputPath(readString(in));
+        gji.setErrorPath(readString(in));
+        gji.setSubmissionType(in.readInt());
+        gji.setBeginIndex(in.readInt());
+        gji.setEndIndex(in.readInt());
+        gji.setNumJobs(in.readInt());
+        gji.setPrivilegeEscalation(in.readBoolean());
+
+        int n = in.readInt();
+        if (n >= 0) {
+            Properties env = new Properties();
+            for (int i = 0; i < n; i++) {
+                String name = readString(in);
+                String value = readString(in);
+                if (value != null) {
+                    env.setProperty(name, value);
+                }
+            }
+            gji.setEnvironmentProperties(env);
+        }
+
+        n = in.readInt();
+        if (n >= 0) {
+            List<GridJobArgument> args = new ArrayList<GridJobArgument>(n);
+            for (int i = 0; i < n; i++) {
+                String value = readString(in);
+                String type = readString(in);
+                args.add(new GridJobArgument(value, type));
+            }
+            gji.setArguments(args);
+        }
+
+        return gji;
+    }
+
+    public static void writeJobInfo(DataOutputStream out, GridJobInfo info) throws IOException {
+        out.writeBoolean(info != null);
+        if (info == null) {
+            return;
+        }
+        writeString(out, info.getJobId());
+        out.writeInt(info.getState());
+        out.writeLong(info.getQueuedTime());
+        out.writeLong(info.getStartTime());
+        out.writeLong(info.getFinishTime());
+        out.writeBoolean(hasExitStatus(info));
+        if (hasExitStatus(info)) {
+            out.writeInt(info.getExitStatus());
+        }
+
+        Map<String, String> vars = info.getComplexVariables();
+        out.writeInt(vars != null ? vars.size() : 0);
+        if (vars != null) {
+            for (Map.Entry<String, String> e : vars.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+        }
+    }
+
+    public static GridJobInfo readJobInfo(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        GridJobInfo info = new GridJobInfo(readString(in));
+        info.setState(in.readInt());
+        info.setQueuedTime(in.readLong());
+        info.setStartTime(in.readLong());
+        info.setFinishTime(in.readLong());
+        if (in.readBoolean()) {
+            info.setExitStatus(in.readInt());
+        }
+
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            info.addComplexVariable(readString(in), readString(in));
+        }
+        return info;
+    }
+
+    /**
+     * @return true if the job is finished, only then it has an exit status
+     */
+    static boolean hasExitStatus(GridJobInfo info) {
+        return info.getState() == GridJobInfo.STATE_FINISHED || info.getState() == GridJobInfo.STATE_ERRORED;
+    }
+
+    /**
+     * @return false if the event is of a type the protocol does not carry
+     */
+    public static boolean writeEvent(DataOutputStream out, GridEvent evt) throws IOException {
+        if (evt instanceof EventFinished) {
+            EventFinished f = (EventFinished) evt;
+            out.writeByte(EVENT_FINISHED);
+            writeEventFields(out, evt);
+            out.writeLong(f.getFinishTime());
+            out.writeLong(f.getStartTime());
+            out.writeInt(f.getExitStatus());
+        } else if (evt instanceof EventRunning) {
+            out.writeByte(EVENT_RUNNING);
+            writeEventFields(out, evt);
+        } else if (evt instanceof EventQueued) {
+            out.writeByte(EVENT_QUEUED);
+            writeEventFields(out, evt);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    public static GridEvent readEvent(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        String jobId = readString(in);
+        String taskId = readString(in);
+        String error = readString(in);
+
+        GridEvent evt;
+        switch (kind) {
+            case EVENT_FINISHED:
+                evt = new EventFinished(jobId, taskId, in.readLong(), in.readLong(), in.readInt());
+                break;
+            case EVENT_RUNNING:
+                evt = new EventRunning(jobId, taskId);
+                break;
+            case EVENT_QUEUED:
+                evt = new EventQueued(jobId, taskId);
+                break;
+            default:
+                throw new IOException("Unknown event kind " + kind);
+        }
+        if (error != null) {
+            evt.setError(error);
+        }
+        return evt;
+    }
+
+    /**
+     * @return an input stream reading from the channel directly, so reading
+     * and writing from different threads do not block each other
+     */
+    public static InputStream inputStream(final SocketChannel ch) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : ch.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                ch.close();
+            }
+        };
+    }
+
+    /**
+     * @return an output stream writing to the channel directly
+     */
+    public static OutputStream outputStream(final SocketChannel ch) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining()) {
+                    if (ch.write(buf) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                ch.close();
+            }
+        };
+    }
+
+    private static void writeEventFields(DataOutputStream out, GridEvent evt) throws IOException {
+        writeString(out, evt.getJobId());
+        writeString(out, evt.getTaskId());
+        writeString(out, evt.hasError() ? evt.getError() : null);
+    }
+
+    private static ProtocolFamily unixFamily() throws Exception {
+        return (ProtocolFamily) StandardProtocolFamily.class.getField("UNIX").get(null);
+    }
+
+    private static SocketAddress unixAddress(String path) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class)
+                    .invoke(null, path);
+        } catch (Exception ex) {
+            throw unsupported(ex);
+        }
+    }
+
+    private static IOException unsupported(Exception ex) {
+        return new IOException("Unix domain sockets need Java 16 or later, use a tcp:port address instead", ex);
+    }
+}
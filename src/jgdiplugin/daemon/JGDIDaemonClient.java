@@ -0,0 +1,530 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import plgrid.GridJobInfo;
+import plgrid.GridJobSubmitInfo;
+import plgrid.PipelineGridPlugin;
+import plgrid.event.EventFinished;
+import plgrid.event.EventQueued;
+import plgrid.event.EventRunning;
+import plgrid.event.GridEvent;
+
+/**
+ * Thin plugin which forwards all calls to a {@link JobStateDaemon} on the
+ * same host, so several Pipeline servers share one qmaster connection and
+ * one accounting ingestion. The job events are streamed from the daemon.
+ * {@link jgdiplugin.JGDIPlugin} forwards to it when JGDI_DAEMON_SOCKET is set,
+ * so Pipeline's configuration does not change.
+ *
+ * The daemon address is the "GridDaemonSocket" preference, the
+ * JGDI_DAEMON_SOCKET environment variable or daemon.sock in the private
+ * directory jgdiplugin-&lt;user&gt; of the temporary directory. The secret for
+ * TCP mode is read from the file named by the "GridDaemonSecretFile"
+ * preference or the JGDI_DAEMON_SECRET_FILE environment variable. All other
+ * preferences are those of the daemon.
+ *
+ * When the connection is lost, the calls in flight are sent again after the
+ * reconnect; the daemon answers a repeated submission with the job of the
+ * first one. The events sent meanwhile are lost, so the client queries the
+ * state of its unfinished jobs then and publishes the transitions it missed.
+ */
+public class JGDIDaemonClient extends PipelineGridPlugin {
+
+    public JGDIDaemonClient() {
+        this(System.getenv("JGDI_DAEMON_SOCKET") != null ? System.getenv("JGDI_DAEMON_SOCKET")
+                : DaemonProtocol.DEFAULT_ADDRESS);
+    }
+
+    /**
+     * @param address the Unix socket path or "tcp:port" of the daemon
+     */
+    public JGDIDaemonClient(String address) {
+        this.address = address;
+        secretFile = System.getenv("JGDI_DAEMON_SECRET_FILE");
+
+        Thread connector = new Thread(new Runnable() {
+            public void run() {
+                connectLoop();
+            }
+        }, "DaemonConnector");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    @Override
+    public void setPreferences(Map<String, String> prefs) {
+        super.setPreferences(prefs);
+
+        String sf = prefs.get("GridDaemonSecretFile");
+        if (sf != null && sf.trim().length() > 0) {
+            secretFile = sf.trim();
+        }
+
+        String a = prefs.get("GridDaemonSocket");
+        if (a != null && a.trim().length() > 0 && !a.trim().equals(address)) {
+            address = a.trim();
+            // the connector picks up the new address
+            disconnect();
+        }
+    }
+
+    @Override
+    public String submitJob(GridJobSubmitInfo gji) {
+        try {
+            long id = requestIds.incrementAndGet();
+            DaemonProtocol.Frame f = request(DaemonProtocol.SUBMIT, id);
+            // identifies the submission when it is sent again after a reconnect
+            DaemonProtocol.writeString(f, clientId + "-" + id);
+            DaemonProtocol.writeSubmitInfo(f, gji);
+            String jobId = DaemonProtocol.readString(call(id, f));
+            if (jobId != null && !jobId.startsWith("ERROR")) {
+                // array job ids carry their task range, events only the job number
+                int dot = jobId.indexOf('.');
+                track(dot == -1 ? jobId : jobId.substring(0, dot), "", GridJobInfo.STATE_QUEUED, true);
+            }
+            return jobId;
+        } catch (IOException ex) {
+            return "ERROR:" + ex.getMessage();
+        }
+    }
+
+    @Override
+    public void killJob(String jobId, String username, boolean force) {
+        try {
+            long id = requestIds.incrementAndGet();
+            DaemonProtocol.Frame f = request(DaemonProtocol.KILL, id);
+            DaemonProtocol.writeString(f, jobId);
+            DaemonProtocol.writeString(f, username);
+            f.writeBoolean(force);
+            call(id, f);
+        } catch (IOException ex) {
+            System.err.println(new Date() + ": Unable to delete job " + jobId + ": " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public List<GridJobInfo> getJobList(String complexVariables) {
+        try {
+            long id = requestIds.incrementAndGet();
+            DaemonProtocol.Frame f = request(DaemonProtocol.JOB_LIST, id);
+            DaemonProtocol.writeString(f, complexVariables);
+            DataInputStream in = call(id, f);
+
+            int n = in.readInt();
+            if (n < 0) {
+                return null;
+            }
+            List<GridJobInfo> jobs = new ArrayList<GridJobInfo>(n);
+            for (int i = 0; i < n; i++) {
+                jobs.add(DaemonProtocol.readJobInfo(in));
+            }
+            return jobs;
+        } catch (IOException ex) {
+            System.err.println(new Date() + ": Unable to get job list: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public GridJobInfo getJobInfo(String jobId) {
+        try {
+            long id = requestIds.incrementAndGet();
+            DaemonProtocol.Frame f = request(DaemonProtocol.JOB_INFO, id);
+            DaemonProtocol.writeString(f, jobId);
+            return DaemonProtocol.readJobInfo(call(id, f));
+        } catch (IOException ex) {
+            System.err.println(new Date() + ": Unable to get info of job " + jobId + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    private static DaemonProtocol.Frame request(byte type, long requestId) throws IOException {
+        DaemonProtocol.Frame f = new DaemonProtocol.Frame(type);
+        f.writeLong(requestId);
+        return f;
+    }
+
+    /**
+     * Sends the request and waits for its result. If the connection is lost
+     * meanwhile, the request is sent again after the reconnect.
+     *
+     * @return the payload of the result after the request id
+     */
+    private DataInputStream call(long requestId, DaemonProtocol.Frame f) throws IOException {
+        Connection c = awaitConnection();
+        PendingCall pc = new PendingCall(f);
+        pending.put(requestId, pc);
+        try {
+            try {
+                c.send(f);
+            } catch (IOException ex) {
+                // sent again by the connector
+            }
+            if (!pc.done.await(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("The job state daemon did not answer");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } finally {
+            pending.remove(requestId);
+        }
+
+        if (pc.failure != null) {
+            throw new IOException(pc.failure);
+        }
+        return pc.result;
+    }
+
+    private Connection awaitConnection() throws IOException {
+        long deadline = System.currentTimeMillis() + CONNECT_WAIT_MS;
+        synchronized (this) {
+            while (connection == null) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("Not connected to the job state daemon at " + address);
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            return connection;
+        }
+    }
+
+    private void connectLoop() {
+        boolean reported = false;
+
+        while (true) {
+            Connection c;
+            try {
+                c = new Connection(DaemonProtocol.connect(address));
+                String sf = secretFile;
+                if (sf != null) {
+                    DaemonProtocol.Frame auth = new DaemonProtocol.Frame(DaemonProtocol.AUTH);
+                    auth.write(DaemonProtocol.readSecret(sf));
+                    c.send(auth);
+                }
+                c.send(new DaemonProtocol.Frame(DaemonProtocol.SUBSCRIBE));
+            } catch (IOException ex) {
+                if (!reported) {
+                    System.err.println(new Date() + ": Cannot connect to the job state daemon at " + address
+                            + ": " + ex.getMessage());
+                    reported = true;
+                }
+                sleep(RECONNECT_DELAY_MS);
+                continue;
+            }
+
+            System.out.println(new Date() + ": Connected to the job state daemon at " + address);
+            reported = false;
+            synchronized (this) {
+                connection = c;
+                notifyAll();
+            }
+
+            if (connectedBefore) {
+                resendPending(c);
+                startResync();
+            }
+            connectedBefore = true;
+
+            c.readLoop();
+
+            synchronized (this) {
+                connection = null;
+            }
+            System.err.println(new Date() + ": Connection to the job state daemon lost");
+            sleep(RECONNECT_DELAY_MS);
+        }
+    }
+
+    private void resendPending(Connection c) {
+        TreeMap<Long, PendingCall> calls = new TreeMap<Long, PendingCall>(pending);
+        try {
+            for (PendingCall pc : calls.values()) {
+                c.send(pc.frame);
+            }
+        } catch (IOException ex) {
+            // lost again, sent with the next connection
+        }
+    }
+
+    /**
+     * Queries the state of the unfinished jobs, on its own thread because
+     * the calls need the connector to read their results.
+     */
+    private void startResync() {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                resync();
+            }
+        }, "DaemonResync");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void resync() {
+        List<String[]> tasks = new ArrayList<String[]>();
+        synchronized (jobs) {
+            for (Map.Entry<String, Map<String, Integer>> e : jobs.entrySet()) {
+                for (String taskId : e.getValue().keySet()) {
+                    tasks.add(new String[]{e.getKey(), taskId});
+                }
+            }
+        }
+
+        int published = 0;
+        for (String[] t : tasks) {
+            String jobId = t[0];
+            String taskId = t[1];
+            GridJobInfo info = getJobInfo(taskId.length() > 0 ? jobId + "." + taskId : jobId);
+            if (info == null) {
+                continue; // not connected, resynced with the next connection
+            }
+
+            Integer known;
+            synchronized (jobs) {
+                Map<String, Integer> states = jobs.get(jobId);
+                known = states != null ? states.get(taskId) : null;
+            }
+            if (known == null) {
+                continue; // an event came in meanwhile
+            }
+
+            // a job without a task event yet finishes as a whole
+            String eventTaskId = taskId.length() > 0 ? taskId : "0";
+            GridEvent evt = null;
+            int state = info.getState();
+
+            if (state == GridJobInfo.STATE_RUNNING && known != GridJobInfo.STATE_RUNNING) {
+                // without a task event yet, task 1 is asked for, a single job's only task
+                evt = new EventRunning(jobId, taskId.length() > 0 ? taskId : "1");
+            } else if (state == GridJobInfo.STATE_FINISHED || state == GridJobInfo.STATE_ERRORED) {
+                evt = new EventFinished(jobId, eventTaskId, info.getFinishTime(), info.getStartTime(),
+                        info.getExitStatus());
+            } else if (state == GridJobInfo.STATE_NOT_FOUND) {
+                evt = new EventFinished(jobId, eventTaskId, System.currentTimeMillis(), UNKNOWN_EXIT_STATUS);
+                evt.setError("Job finished while the client was not connected to the job state daemon, "
+                        + "exit status unknown");
+            }
+
+            if (evt != null) {
+                eventReceived(evt);
+                published++;
+            }
+        }
+
+        if (published > 0) {
+            System.out.println(new Date() + ": Published " + published
+                    + " job state changes missed while disconnected from the job state daemon");
+        }
+    }
+
+    /**
+     * Keeps track of the state of the unfinished jobs and fires the event.
+     */
+    private void eventReceived(GridEvent evt) {
+        String jobId = evt.getJobId();
+        String taskId = evt.getTaskId();
+
+        if (evt instanceof EventFinished) {
+            if (taskId == null || taskId.equals("0")) {
+                synchronized (jobs) {
+                    jobs.remove(jobId);
+                }
+            } else {
+                untrack(jobId, taskId);
+            }
+        } else if (evt instanceof EventRunning) {
+            track(jobId, taskId, GridJobInfo.STATE_RUNNING, false);
+        } else if (evt instanceof EventQueued) {
+            track(jobId, taskId, GridJobInfo.STATE_QUEUED, false);
+        }
+
+        fireEvent(evt);
+    }
+
+    /**
+     * @param taskId the task, "" for a job without a task event yet
+     * @param submitted true for a job submitted by this client, the events
+     * of other jobs only update jobs which are tracked already
+     */
+    private void track(String jobId, String taskId, int state, boolean submitted) {
+        if (jobId == null) {
+            return;
+        }
+        if (taskId == null) {
+            taskId = "";
+        }
+        synchronized (jobs) {
+            Map<String, Integer> states = jobs.get(jobId);
+            if (states == null) {
+                if (!submitted || jobs.size() >= MAX_TRACKED_JOBS) {
+                    return;
+                }
+                states = new HashMap<String, Integer>();
+                jobs.put(jobId, states);
+            }
+            if (taskId.length() > 0) {
+                states.remove("");
+            }
+            states.put(taskId, state);
+        }
+    }
+
+    private void untrack(String jobId, String taskId) {
+        synchronized (jobs) {
+            Map<String, Integer> states = jobs.get(jobId);
+            if (states != null) {
+                states.remove(taskId);
+                states.remove("");
+                if (states.isEmpty()) {
+                    jobs.remove(jobId);
+                }
+            }
+        }
+    }
+
+    private void disconnect() {
+        Connection c = connection;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingCall {
+
+        PendingCall(DaemonProtocol.Frame frame) {
+            this.frame = frame;
+        }
+        private final DaemonProtocol.Frame frame;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile DataInputStream result;
+        private volatile String failure;
+    }
+
+    private class Connection {
+
+        Connection(SocketChannel ch) {
+            this.ch = ch;
+            in = new DataInputStream(new BufferedInputStream(DaemonProtocol.inputStream(ch)));
+            out = new DataOutputStream(new BufferedOutputStream(DaemonProtocol.outputStream(ch)));
+        }
+
+        void send(DaemonProtocol.Frame f) throws IOException {
+            synchronized (out) {
+                f.writeTo(out);
+                out.flush();
+            }
+        }
+
+        void readLoop() {
+            try {
+                while (true) {
+                    DataInputStream frame = DaemonProtocol.readFrame(in);
+                    byte type = frame.readByte();
+
+                    if (type == DaemonProtocol.EVENT) {
+                        eventReceived(DaemonProtocol.readEvent(frame));
+                        continue;
+                    }
+
+                    PendingCall pc = pending.remove(frame.readLong());
+                    if (pc == null) {
+                        continue; // the caller gave up, or answered before a reconnect
+                    }
+                    if (type == DaemonProtocol.RESULT_ERROR) {
+                        pc.failure = DaemonProtocol.readString(frame);
+                    } else {
+                        pc.result = frame;
+                    }
+                    pc.done.countDown();
+                }
+            } catch (IOException ex) {
+                // the daemon is gone
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                ch.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+        private final SocketChannel ch;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+    }
+    private static final long CONNECT_WAIT_MS = 30000;
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final long CALL_TIMEOUT_MS = 15 * 60 * 1000;
+    private static final int UNKNOWN_EXIT_STATUS = -88;
+    private static final int MAX_TRACKED_JOBS = 100000;
+    private final String clientId = UUID.randomUUID().toString();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Map<Long, PendingCall> pending = new ConcurrentHashMap<Long, PendingCall>();
+    // job id -> task id, "" before the first task event -> GridJobInfo state
+    private final Map<String, Map<String, Integer>> jobs = new HashMap<String, Map<String, Integer>>();
+    private boolean connectedBefore;
+    private volatile String address;
+    private volatile String secretFile;
+    private volatile Connection connection;
+}
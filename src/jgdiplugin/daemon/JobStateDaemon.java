@@ -0,0 +1,498 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import jgdiplugin.BlockingExecutors;
+import jgdiplugin.JGDIPlugin;
+import plgrid.GridEventListener;
+import plgrid.GridJobInfo;
+import plgrid.GridJobSubmitInfo;
+import plgrid.event.GridEvent;
+
+/**
+ * Standalone daemon which owns the qmaster connection and the accounting
+ * ingestion for all Pipeline servers on a host. The servers use
+ * {@link JGDIDaemonClient} as their plugin, which forwards submissions and
+ * queries to the daemon and receives the job events from it.
+ *
+ * The job states are answered from the {@link JobStateTable} the events
+ * feed, only jobs the daemon has not seen are looked up by the plugin. A
+ * client gets the events of the jobs it submitted, asked for or listed.
+ *
+ * Usage: JobStateDaemon [address [preferences file]]. The address is a Unix
+ * socket path or "tcp:port", the preferences file holds the plugin
+ * preferences as properties. TCP mode needs the "GridDaemonSecretFile"
+ * preference, see the trust model of {@link DaemonProtocol}.
+ */
+public class JobStateDaemon {
+
+    public JobStateDaemon(JGDIPlugin plugin, String address) {
+        this(plugin, address, null);
+    }
+
+    /**
+     * @param secret the secret clients must send first, null to accept
+     * clients without one; required for TCP
+     */
+    public JobStateDaemon(JGDIPlugin plugin, String address, byte[] secret) {
+        this.plugin = plugin;
+        this.address = address;
+        this.secret = secret;
+        requestExecutor = BlockingExecutors.newExecutor("DaemonRequest", plugin.isUsingVirtualThreads());
+
+        plugin.registerEventListener(new GridEventListener() {
+            public void eventOccurred(List<GridEvent> events) {
+                // the table first, a client starting to watch a job gets the state from there
+                for (GridEvent evt : events) {
+                    table.eventOccurred(evt);
+                }
+                broadcast(events);
+            }
+        });
+    }
+
+    /**
+     * Accepts clients until the daemon is closed.
+     */
+    public void serve() throws IOException {
+        if (address.startsWith("tcp:") && secret == null) {
+            throw new IOException("Any local user can connect to a TCP port, listening on " + address
+                    + " needs a secret (GridDaemonSecretFile)");
+        }
+        server = DaemonProtocol.listen(address);
+        System.out.println(new Date() + ": Job state daemon listening on " + address);
+
+        while (server.isOpen()) {
+            SocketChannel ch;
+            try {
+                ch = server.accept();
+            } catch (IOException ex) {
+                if (!server.isOpen()) {
+                    break;
+                }
+                throw ex;
+            }
+            new ClientConnection(ch).start();
+        }
+    }
+
+    public void close() {
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException ex) {
+            // nothing to do
+        }
+        for (ClientConnection c : clients) {
+            c.close();
+        }
+        requestExecutor.shutdownNow();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Submits the job once per submission key. A client sends a submission
+     * again when its connection was lost before the answer came, it gets the
+     * job of the first one then instead of a duplicate job.
+     */
+    private String submit(String key, final GridJobSubmitInfo gji) throws IOException {
+        FutureTask<String> task;
+        boolean first = false;
+
+        synchronized (submissions) {
+            task = submissions.get(key);
+            if (task == null) {
+                task = new FutureTask<String>(new Callable<String>() {
+                    public String call() {
+                        return plugin.submitJob(gji);
+                    }
+                });
+                submissions.put(key, task);
+                first = true;
+            }
+        }
+
+        if (first) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private void broadcast(List<GridEvent> events) {
+        for (GridEvent evt : events) {
+            DaemonProtocol.Frame f = eventFrame(evt);
+            if (f == null) {
+                continue;
+            }
+            for (ClientConnection c : clients) {
+                if (c.subscribed && c.isWatching(evt.getJobId())) {
+                    c.send(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the frame of the event, null if the protocol does not carry it
+     */
+    private static DaemonProtocol.Frame eventFrame(GridEvent evt) {
+        try {
+            DaemonProtocol.Frame f = new DaemonProtocol.Frame(DaemonProtocol.EVENT);
+            return DaemonProtocol.writeEvent(f, evt) ? f : null;
+        } catch (IOException ex) {
+            // written to memory
+            return null;
+        }
+    }
+
+    /**
+     * @return the job number of a job id, array job ids carry their task range
+     */
+    private static String jobNumber(String jobId) {
+        int dot = jobId.indexOf('.');
+        return dot == -1 ? jobId : jobId.substring(0, dot);
+    }
+
+    /**
+     * A connected client. Frames to the client go through a bounded queue, a
+     * client which does not keep up is disconnected instead of blocking the
+     * event delivery of all others. It reconnects, sends its unanswered
+     * requests again and queries the state of its jobs then.
+     */
+    private class ClientConnection {
+
+        ClientConnection(SocketChannel ch) throws IOException {
+            this.ch = ch;
+            in = new DataInputStream(new BufferedInputStream(DaemonProtocol.inputStream(ch)));
+            out = new DataOutputStream(new BufferedOutputStream(DaemonProtocol.outputStream(ch)));
+        }
+
+        void start() {
+            clients.add(this);
+
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            handle(DaemonProtocol.readFrame(in));
+                        }
+                    } catch (IOException ex) {
+                        // the client disconnected
+                    } finally {
+                        close();
+                    }
+                }
+            }, "DaemonClientReader");
+            reader.setDaemon(true);
+            reader.start();
+
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (!closed) {
+                            DaemonProtocol.Frame f = outbox.take();
+                            do {
+                                f.writeTo(out);
+                                f = outbox.poll();
+                            } while (f != null);
+                            out.flush();
+                        }
+                    } catch (Exception ex) {
+                        // the client disconnected
+                    } finally {
+                        close();
+                    }
+                }
+            }, "DaemonClientWriter");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void send(DaemonProtocol.Frame f) {
+            if (!outbox.offer(f)) {
+                System.err.println(new Date() + ": Daemon client does not keep up, disconnecting it");
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            clients.remove(this);
+            outbox.clear();
+            if (writer != null) {
+                writer.interrupt();
+            }
+            try {
+                ch.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+
+        private void handle(DataInputStream frame) throws IOException {
+            final byte type = frame.readByte();
+
+            if (!authenticated) {
+                byte[] actual = new byte[frame.available()];
+                frame.readFully(actual);
+                if (type != DaemonProtocol.AUTH || !DaemonProtocol.secretMatches(secret, actual)) {
+                    System.err.println(new Date() + ": Daemon client sent no or a wrong secret, disconnecting it");
+                    throw new IOException("Not authenticated");
+                }
+                authenticated = true;
+                return;
+            }
+
+            if (type == DaemonProtocol.SUBSCRIBE) {
+                subscribed = true;
+                return;
+            }
+
+            final long requestId = frame.readLong();
+            final DataInputStream request = frame;
+
+            // requests may block on qmaster, answer them in any order
+            requestExecutor.execute(new Runnable() {
+                public void run() {
+                    DaemonProtocol.Frame response;
+                    try {
+                        response = execute(type, requestId, request);
+                    } catch (Exception ex) {
+                        response = error(requestId, ex.toString());
+                    }
+                    if (response != null) {
+                        send(response);
+                    }
+                }
+            });
+        }
+
+        /**
+         * The client gets the events of the job from now on, and what it
+         * missed of them before.
+         */
+        void watch(String jobId) {
+            String job = jobNumber(jobId);
+            synchronized (jobs) {
+                if (jobs.put(job, Boolean.TRUE) != null) {
+                    return;
+                }
+            }
+            for (GridEvent evt : table.getEvents(job)) {
+                DaemonProtocol.Frame f = eventFrame(evt);
+                if (f != null) {
+                    send(f);
+                }
+            }
+        }
+
+        boolean isWatching(String jobId) {
+            if (jobId == null) {
+                return false;
+            }
+            synchronized (jobs) {
+                return jobs.containsKey(jobId);
+            }
+        }
+
+        private DaemonProtocol.Frame execute(byte type, long requestId, DataInputStream request) throws Exception {
+            DaemonProtocol.Frame f;
+
+            switch (type) {
+                case DaemonProtocol.SUBMIT:
+                    String jobId = submit(DaemonProtocol.readString(request), DaemonProtocol.readSubmitInfo(request));
+                    f = new DaemonProtocol.Frame(DaemonProtocol.RESULT_STRING);
+                    f.writeLong(requestId);
+                    DaemonProtocol.writeString(f, jobId);
+                    if (jobId != null && !jobId.startsWith("ERROR")) {
+                        table.submitted();
+                        // the answer goes first, the client tracks the job from there
+                        send(f);
+                        watch(jobId);
+                        return null;
+                    }
+                    return f;
+
+                case DaemonProtocol.KILL:
+                    plugin.killJob(DaemonProtocol.readString(request), DaemonProtocol.readString(request),
+                            request.readBoolean());
+                    f = new DaemonProtocol.Frame(DaemonProtocol.RESULT_OK);
+                    f.writeLong(requestId);
+                    return f;
+
+                case DaemonProtocol.JOB_INFO:
+                    String id = DaemonProtocol.readString(request);
+                    GridJobInfo info = table.getJobInfo(id);
+                    if (info == null) {
+                        // not seen since the daemon started
+                        info = plugin.getJobInfo(id);
+                        table.learned(info);
+                    }
+                    watch(id);
+                    f = new DaemonProtocol.Frame(DaemonProtocol.RESULT_JOB_INFO);
+                    f.writeLong(requestId);
+                    DaemonProtocol.writeJobInfo(f, info);
+                    return f;
+
+                case DaemonProtocol.JOB_LIST:
+                    final String complexVariables = DaemonProtocol.readString(request);
+                    List<GridJobInfo> jobs = table.getJobList(complexVariables, new Callable<List<GridJobInfo>>() {
+                        public List<GridJobInfo> call() {
+                            return plugin.getJobList(complexVariables);
+                        }
+                    });
+                    for (GridJobInfo j : jobs) {
+                        watch(j.getJobId());
+                    }
+                    f = new DaemonProtocol.Frame(DaemonProtocol.RESULT_JOB_LIST);
+                    f.writeLong(requestId);
+                    f.writeInt(jobs != null ? jobs.size() : -1);
+                    if (jobs != null) {
+                        for (GridJobInfo j : jobs) {
+                            DaemonProtocol.writeJobInfo(f, j);
+                        }
+                    }
+                    return f;
+
+                default:
+                    return error(requestId, "Unknown request type " + type);
+            }
+        }
+
+        private DaemonProtocol.Frame error(long requestId, String message) {
+            try {
+                DaemonProtocol.Frame f = new DaemonProtocol.Frame(DaemonProtocol.RESULT_ERROR);
+                f.writeLong(requestId);
+                DaemonProtocol.writeString(f, message);
+                return f;
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+        private final SocketChannel ch;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final BlockingQueue<DaemonProtocol.Frame> outbox =
+                new LinkedBlockingQueue<DaemonProtocol.Frame>(CLIENT_OUTBOX_CAPACITY);
+        // job numbers of the jobs the client is told about, the most recent ones
+        private final Map<String, Boolean> jobs = new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_WATCHED_JOBS;
+            }
+        };
+        private volatile Thread writer;
+        private volatile boolean subscribed;
+        private volatile boolean closed;
+        private boolean authenticated = secret == null;  // only used by the reader
+    }
+
+    public static void main(String[] args) throws Exception {
+        String address = args.length > 0 ? args[0] : DaemonProtocol.DEFAULT_ADDRESS;
+
+        Map<String, String> prefs = new HashMap<String, String>();
+        if (args.length > 1) {
+            Properties p = new Properties();
+            FileInputStream fis = new FileInputStream(args[1]);
+            try {
+                p.load(fis);
+            } finally {
+                fis.close();
+            }
+            for (String name : p.stringPropertyNames()) {
+                prefs.put(name, p.getProperty(name));
+            }
+        }
+
+        // the daemon itself connects to qmaster, even where clients are told its address
+        JGDIPlugin plugin = new JGDIPlugin(null);
+        plugin.setPreferences(prefs);
+
+        String secretFile = prefs.get("GridDaemonSecretFile");
+        byte[] secret = secretFile != null && secretFile.trim().length() > 0
+                ? DaemonProtocol.readSecret(secretFile.trim()) : null;
+
+        final JobStateDaemon daemon = new JobStateDaemon(plugin, address, secret);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                daemon.close();
+            }
+        });
+        daemon.serve();
+    }
+    private static final int CLIENT_OUTBOX_CAPACITY = 65536;
+    private static final int SUBMISSION_CACHE_SIZE = 10000;
+    private static final int MAX_WATCHED_JOBS = 200000;
+    // submission key -> the submission, the most recent ones
+    private final Map<String, FutureTask<String>> submissions = new LinkedHashMap<String, FutureTask<String>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FutureTask<String>> eldest) {
+            return size() > SUBMISSION_CACHE_SIZE;
+        }
+    };
+    private final JGDIPlugin plugin;
+    private final JobStateTable table = new JobStateTable();
+    private final String address;
+    private final byte[] secret;
+    private final ExecutorService requestExecutor;
+    private final Set<ClientConnection> clients = new CopyOnWriteArraySet<ClientConnection>();
+    private volatile ServerSocketChannel server;
+}
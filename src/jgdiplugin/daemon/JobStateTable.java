@@ -0,0 +1,309 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin.daemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import plgrid.GridJobInfo;
+import plgrid.event.EventFinished;
+import plgrid.event.EventQueued;
+import plgrid.event.EventRunning;
+import plgrid.event.GridEvent;
+
+/**
+ * Job states of the daemon, fed by the events of the plugin, so the queries
+ * of the clients are answered from memory instead of qmaster.
+ *
+ * Tasks are keyed "job.task", a job id without a task means task 1 as for
+ * the plugin. A finish of task 0 finishes the whole job, it is kept as task 0.
+ * The finished tasks of the most recent jobs are kept for the clients which
+ * ask late.
+ *
+ * The job list filters by the complex variables and names of the jobs,
+ * which the events do not carry. So the ids in the list of a filter come
+ * from the plugin, at most once per {@link #JOB_LIST_MAX_AGE_MS} or after a
+ * submission, and their states from the events.
+ */
+class JobStateTable {
+
+    /**
+     * Updates the state of the task of the event.
+     */
+    synchronized void eventOccurred(GridEvent evt) {
+        String jobId = evt.getJobId();
+        String taskId = evt.getTaskId();
+        if (jobId == null) {
+            return;
+        }
+
+        if (evt instanceof EventFinished) {
+            EventFinished f = (EventFinished) evt;
+            GridJobInfo info = new GridJobInfo(jobId);
+            info.setState(GridJobInfo.STATE_FINISHED);
+            info.setStartTime(f.getStartTime());
+            info.setFinishTime(f.getFinishTime());
+            info.setExitStatus(f.getExitStatus());
+
+            if (taskId == null || taskId.equals("0")) {
+                // all tasks are gone
+                Map<String, GridJobInfo> tasks = live.remove(jobId);
+                if (tasks != null) {
+                    for (String key : tasks.keySet()) {
+                        finishedTasks(jobId).put(key, copy(info, key));
+                    }
+                }
+                finishedTasks(jobId).put(jobId + ".0", copy(info, jobId + ".0"));
+            } else {
+                String key = jobId + "." + taskId;
+                removeLive(jobId, key);
+                finishedTasks(jobId).put(key, copy(info, key));
+            }
+        } else if (evt instanceof EventRunning) {
+            GridJobInfo info = liveTask(jobId, taskId);
+            if (info.getState() != GridJobInfo.STATE_RUNNING) {
+                info.setState(GridJobInfo.STATE_RUNNING);
+                info.setStartTime(System.currentTimeMillis());
+            }
+        } else if (evt instanceof EventQueued) {
+            GridJobInfo info = liveTask(jobId, taskId);
+            if (info.getState() == GridJobInfo.STATE_UNKNOWN) {
+                info.setState(GridJobInfo.STATE_QUEUED);
+            }
+        }
+    }
+
+    /**
+     * Remembers the state of a task which the daemon learned from the
+     * plugin, unless an event told it already.
+     */
+    synchronized void learned(GridJobInfo info) {
+        if (info == null || info.getJobId() == null) {
+            return;
+        }
+        String key = key(info.getJobId());
+        String jobId = key.substring(0, key.indexOf('.'));
+        if (finishedTask(jobId, key) != null) {
+            return;
+        }
+
+        int state = info.getState();
+        if (state == GridJobInfo.STATE_FINISHED || state == GridJobInfo.STATE_ERRORED) {
+            finishedTasks(jobId).put(key, copy(info, key));
+        } else if (state == GridJobInfo.STATE_QUEUED || state == GridJobInfo.STATE_RUNNING) {
+            Map<String, GridJobInfo> tasks = live.get(jobId);
+            if (tasks == null || !tasks.containsKey(key)) {
+                GridJobInfo known = liveTask(jobId, key.substring(jobId.length() + 1));
+                known.setState(state);
+                known.setStartTime(info.getStartTime());
+                known.setQueuedTime(info.getQueuedTime());
+                for (Map.Entry<String, String> e : info.getComplexVariables().entrySet()) {
+                    known.addComplexVariable(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * A job was submitted through the daemon, the job lists may miss it.
+     */
+    synchronized void submitted() {
+        jobLists.clear();
+    }
+
+    /**
+     * @return the state of the job, null if the daemon does not know it
+     */
+    synchronized GridJobInfo getJobInfo(String jobId) {
+        String key = key(jobId);
+        String job = key.substring(0, key.indexOf('.'));
+        GridJobInfo info = null;
+
+        Map<String, GridJobInfo> tasks = live.get(job);
+        if (tasks != null) {
+            info = tasks.get(key);
+        }
+        if (info == null) {
+            info = finishedTask(job, key);
+        }
+        return info != null ? copy(info, jobId) : null;
+    }
+
+    /**
+     * @param loader gets the job list of the filter from the plugin
+     * @return the unfinished tasks of the list of the filter
+     */
+    List<GridJobInfo> getJobList(String complexVariables, Callable<List<GridJobInfo>> loader) throws Exception {
+        String filter = complexVariables != null ? complexVariables : "";
+        JobList list;
+
+        synchronized (this) {
+            list = jobLists.get(filter);
+            if (list == null || System.currentTimeMillis() - list.time > JOB_LIST_MAX_AGE_MS) {
+                list = new JobList();
+                jobLists.put(filter, list);
+            }
+        }
+
+        // the clients asking for the same filter share one query
+        synchronized (list) {
+            if (list.ids == null) {
+                List<GridJobInfo> jobs = loader.call();
+                List<String> ids = new ArrayList<String>(jobs.size());
+                for (GridJobInfo j : jobs) {
+                    learned(j);
+                    ids.add(j.getJobId());
+                }
+                list.ids = ids;
+            }
+        }
+
+        List<GridJobInfo> ret = new ArrayList<GridJobInfo>(list.ids.size());
+        for (String id : list.ids) {
+            GridJobInfo info = getJobInfo(id);
+            if (info != null && (info.getState() == GridJobInfo.STATE_QUEUED
+                    || info.getState() == GridJobInfo.STATE_RUNNING)) {
+                ret.add(info);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the events which bring a client up to the state of the
+     * running and finished tasks of the job
+     */
+    synchronized List<GridEvent> getEvents(String jobId) {
+        List<GridEvent> events = new ArrayList<GridEvent>();
+
+        Map<String, GridJobInfo> tasks = live.get(jobId);
+        if (tasks != null) {
+            for (Map.Entry<String, GridJobInfo> e : tasks.entrySet()) {
+                if (e.getValue().getState() == GridJobInfo.STATE_RUNNING) {
+                    events.add(new EventRunning(jobId, e.getKey().substring(jobId.length() + 1)));
+                }
+            }
+        }
+
+        Map<String, GridJobInfo> done = finished.get(jobId);
+        if (done != null) {
+            GridJobInfo job = done.get(jobId + ".0");
+            for (Map.Entry<String, GridJobInfo> e : done.entrySet()) {
+                GridJobInfo f = e.getValue();
+                if (job == null || e.getValue() == job) {
+                    events.add(new EventFinished(jobId, e.getKey().substring(jobId.length() + 1),
+                            f.getFinishTime(), f.getStartTime(), f.getExitStatus()));
+                }
+            }
+        }
+        return events;
+    }
+
+    private GridJobInfo liveTask(String jobId, String taskId) {
+        String key = jobId + "." + (taskId != null && taskId.length() > 0 && !taskId.equals("0") ? taskId : "1");
+        Map<String, GridJobInfo> tasks = live.get(jobId);
+        if (tasks == null) {
+            tasks = new HashMap<String, GridJobInfo>();
+            live.put(jobId, tasks);
+        }
+        GridJobInfo info = tasks.get(key);
+        if (info == null) {
+            info = new GridJobInfo(key);
+            info.setQueuedTime(System.currentTimeMillis());
+            tasks.put(key, info);
+        }
+        return info;
+    }
+
+    private Map<String, GridJobInfo> finishedTasks(String jobId) {
+        Map<String, GridJobInfo> tasks = finished.get(jobId);
+        if (tasks == null) {
+            tasks = new HashMap<String, GridJobInfo>();
+            finished.put(jobId, tasks);
+        }
+        return tasks;
+    }
+
+    private GridJobInfo finishedTask(String jobId, String key) {
+        Map<String, GridJobInfo> tasks = finished.get(jobId);
+        if (tasks == null) {
+            return null;
+        }
+        GridJobInfo info = tasks.get(key);
+        return info != null ? info : tasks.get(jobId + ".0");
+    }
+
+    private void removeLive(String jobId, String key) {
+        Map<String, GridJobInfo> tasks = live.get(jobId);
+        if (tasks != null) {
+            tasks.remove(key);
+            if (tasks.isEmpty()) {
+                live.remove(jobId);
+            }
+        }
+    }
+
+    private static String key(String jobId) {
+        return jobId.indexOf('.') == -1 ? jobId + ".1" : jobId;
+    }
+
+    private static GridJobInfo copy(GridJobInfo info, String jobId) {
+        GridJobInfo c = new GridJobInfo(jobId);
+        c.setState(info.getState());
+        c.setQueuedTime(info.getQueuedTime());
+        c.setStartTime(info.getStartTime());
+        c.setFinishTime(info.getFinishTime());
+        if (DaemonProtocol.hasExitStatus(info)) {
+            c.setExitStatus(info.getExitStatus());
+        }
+        if (info.getComplexVariables() != null) {
+            for (Map.Entry<String, String> e : info.getComplexVariables().entrySet()) {
+                c.addComplexVariable(e.getKey(), e.getValue());
+            }
+        }
+        return c;
+    }
+
+    private static class JobList {
+
+        private final long time = System.currentTimeMillis();
+        private List<String> ids;
+    }
+    static final long JOB_LIST_MAX_AGE_MS = 30000;
+    private static final int MAX_FINISHED_JOBS = 10000;
+    // job id -> "job.task" -> state of the queued and running tasks
+    private final Map<String, Map<String, GridJobInfo>> live = new HashMap<String, Map<String, GridJobInfo>>();
+    // job id -> "job.task" -> state of the finished tasks, of the most recent jobs
+    private final Map<String, Map<String, GridJobInfo>> finished =
+            new LinkedHashMap<String, Map<String, GridJobInfo>>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Map<String, GridJobInfo>> eldest) {
+                    return size() > MAX_FINISHED_JOBS;
+                }
+            };
+    private final Map<String, JobList> jobLists = new HashMap<String, JobList>();
+}
@@ -0,0 +1,99 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin.util;
+
+/**
+ * Latency histogram with power of two millisecond buckets. Recording is cheap
+ * and the memory is constant, the percentiles are accurate to a factor of
+ * two. Thread safe.
+ */
+public class LatencyHistogram {
+
+    public synchronized void record(long latencyMs) {
+        if (latencyMs < 0) {
+            latencyMs = 0;
+        }
+
+        int bucket = 64 - Long.numberOfLeadingZeros(latencyMs);
+        buckets[Math.min(bucket, buckets.length - 1)]++;
+        count++;
+        sum += latencyMs;
+        if (latencyMs > max) {
+            max = latencyMs;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param p percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile, 0 if nothing
+     * was recorded
+     */
+    public synchronized long getPercentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * p / 100.0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+            }
+        }
+        return max;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + count + " mean=" + Math.round(getMean()) + "ms p50=" + getPercentile(50) + "ms p90="
+                + getPercentile(90) + "ms p99=" + getPercentile(99) + "ms max=" + max + "ms";
+    }
+    // bucket i holds latencies in [2^(i-1), 2^i - 1], bucket 0 holds 0
+    private final long[] buckets = new long[40];
+    private long count;
+    private long sum;
+    private long max;
+}
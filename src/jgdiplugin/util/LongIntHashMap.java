@@ -0,0 +1,176 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to primitive int values.
+ * Avoids boxing a Long and an Integer for every tracked job task. Not thread
+ * safe, callers synchronize.
+ */
+public class LongIntHashMap {
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the value mapped to key, or missingValue if there is none
+     */
+    public int get(long key, int missingValue) {
+        int i = indexOf(key);
+        return i < 0 ? missingValue : values[i];
+    }
+
+    /**
+     * @return the previous value mapped to key, or missingValue if there was
+     * none
+     */
+    public int put(long key, int value, int missingValue) {
+        if (size + 1 > threshold) {
+            rehash(keys.length << 1);
+        }
+
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return missingValue;
+    }
+
+    /**
+     * @return the removed value, or missingValue if key was not mapped
+     */
+    public int remove(long key, int missingValue) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return missingValue;
+        }
+
+        int old = values[i];
+        used[i] = false;
+        size--;
+
+        // shift back the following entries of the probe sequence
+        int j = (i + 1) & mask;
+        while (used[j]) {
+            long k = keys[j];
+            int v = values[j];
+            used[j] = false;
+            size--;
+            put(k, v, missingValue);
+            j = (j + 1) & mask;
+        }
+
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * @return copy of all keys, in no particular order
+     */
+    public long[] keys() {
+        long[] ret = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                ret[n++] = keys[i];
+            }
+        }
+        return ret;
+    }
+
+    private int indexOf(long key) {
+        int i = slot(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        allocate(capacity);
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i], 0);
+            }
+        }
+    }
+    private static final float LOAD_FACTOR = 0.6f;
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int mask;
+    private int threshold;
+    private int size;
+}
@@ -0,0 +1,162 @@
+/*
+ Copyright 2000-2013  Laboratory of Neuro Imaging (LONI), <http://www.LONI.ucla.edu/>.
+
+ This file is part of the LONI Pipeline Plug-ins (LPP), not the LONI Pipeline itself;
+ see <http://pipeline.loni.ucla.edu/>.
+
+ This plug-in program (not the LONI Pipeline) is free software: you can redistribute it
+ and/or modify it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or  (at your option)
+ any later version. The LONI Pipeline <http://pipeline.loni.ucla.edu/> has a different
+ usage license <http://www.loni.ucla.edu/Policies/LONI_SoftwareAgreement.shtml>.
+
+ This plug-in program is distributed in the hope that it will be useful, but WITHOUT ANY
+ WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ If you make improvements, modifications and extensions of the LONI Pipeline Plug-ins
+ software,  you agree to share them with the LONI Pipeline developers and the broader
+ community according to the GPL license.
+ */
+package jgdiplugin.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel for large numbers of timeouts which are mostly
+ * cancelled before they expire. Scheduling and cancelling cost O(1), one
+ * thread advances the wheel every tick and runs the expired tasks, which must
+ * not block. Timeouts fire up to one tick late.
+ */
+public class TimerWheel {
+
+    /**
+     * A scheduled task.
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, it is dropped from the wheel when its bucket comes
+         * up.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    public TimerWheel(String name, long tickMs, int wheelSize) {
+        this.tickMs = tickMs;
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        buckets = new Timeout[size];
+        mask = size - 1;
+        startTime = System.currentTimeMillis();
+
+        thread = new Thread(name) {
+            @Override
+            public void run() {
+                work();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task after the delay on the wheel thread.
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout t = new Timeout(task, System.currentTimeMillis() + Math.max(0, delayMs));
+        pending.add(t);
+        return t;
+    }
+
+    public void shutdown() {
+        thread.interrupt();
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                long tickTime = startTime + (tick + 1) * tickMs;
+                long sleep = tickTime - System.currentTimeMillis();
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+
+                transferPending();
+                expire(buckets[(int) (tick & mask)], (int) (tick & mask));
+                tick++;
+            }
+        } catch (InterruptedException ex) {
+            // shut down
+        }
+    }
+
+    private void transferPending() {
+        Timeout t;
+        while ((t = pending.poll()) != null) {
+            if (t.cancelled) {
+                continue;
+            }
+            // the bucket of the current tick is expired right after this
+            long ticks = Math.max(tick, (t.deadline - startTime + tickMs - 1) / tickMs - 1);
+            t.rounds = (ticks - tick) / buckets.length;
+            int i = (int) (ticks & mask);
+            t.next = buckets[i];
+            buckets[i] = t;
+        }
+    }
+
+    private void expire(Timeout head, int bucket) {
+        Timeout keep = null;
+
+        for (Timeout t = head; t != null;) {
+            Timeout next = t.next;
+
+            if (t.cancelled) {
+                // dropped
+            } else if (t.rounds > 0) {
+                t.rounds--;
+                t.next = keep;
+                keep = t;
+            } else {
+                try {
+                    t.task.run();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+            t = next;
+        }
+
+        buckets[bucket] = keep;
+    }
+    private final long tickMs;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startTime;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private long tick;
+}